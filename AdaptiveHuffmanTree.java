@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+/** An adaptive Huffman tree (the FGK algorithm). The tree starts out holding
+ * only the not-yet-transmitted (NYT) node and is updated after every character,
+ * so encoder and decoder build identical trees in a single pass and no
+ * frequency header is needed. A character's first occurrence is sent as the
+ * NYT code followed by its raw 9-bit value.
+ *
+ * Nodes live in parallel arrays indexed by their number in the sibling
+ * ordering: weights never decrease with the node number and the root is the
+ * highest-numbered node.
+ */
+public class AdaptiveHuffmanTree {
+
+	/** Number of characters, including EOF */
+	private static final int SYMBOLS = 257;
+
+	/** Bits used to send a character the first time it occurs */
+	private static final int SYMBOL_BITS = 9;
+
+	/** Number of node slots, enough for a full tree over SYMBOLS leaves and
+	 * the NYT node */
+	private static final int NODES = 2 * SYMBOLS + 1;
+
+	private static final int ROOT = NODES - 1;
+
+	/** Root weight at which the tree starts over, which keeps weights and
+	 * code lengths bounded on long streams */
+	private static final int MAX_WEIGHT = 1 << 24;
+
+	private int[] weight;
+	private int[] parent;
+	private int[] left;    // -1 for leaves
+	private int[] right;   // -1 for leaves
+	private int[] symbol;  // character of a leaf
+	private int[] leafOf;  // node of each character, -1 if not yet seen
+	private int nyt;       // node number of the NYT node
+
+	/** Constructs a tree that has seen no characters
+	 */
+	public AdaptiveHuffmanTree() {
+		this.weight = new int[NODES];
+		this.parent = new int[NODES];
+		this.left = new int[NODES];
+		this.right = new int[NODES];
+		this.symbol = new int[NODES];
+		this.leafOf = new int[SYMBOLS];
+		reset();
+	}
+
+	/** Returns the tree to its initial state: a lone NYT node */
+	private void reset() {
+		Arrays.fill(this.weight, 0);
+		Arrays.fill(this.left, -1);
+		Arrays.fill(this.right, -1);
+		Arrays.fill(this.leafOf, -1);
+		this.parent[ROOT] = -1;
+		this.nyt = ROOT;
+	}
+
+	/** Encodes the file given as a stream of bits, updating the tree after
+	 * each character and ending with the EOF character
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 */
+	public void encode(BitInputStream in, BitOutputStream out) {
+		int c = in.readBits(8);
+		while (c != -1) {
+			encodeSymbol(c, out);
+			c = in.readBits(8);
+		}
+		encodeSymbol(256, out); //EOF character
+	}
+
+	/** Decodes characters until the EOF character, updating the tree after
+	 * each one
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 */
+	public void decode(BitInputStream in, BitOutputStream out) {
+		while (true) {
+			int node = ROOT;
+			while (this.left[node] != -1) {
+				int bit = in.readBit();
+				if (bit == -1) {
+					throw new IllegalArgumentException("Input ended before the EOF code");
+				}
+				node = bit == 0 ? this.left[node] : this.right[node];
+			}
+
+			int c;
+			if (node == this.nyt) {
+				c = in.readBits(SYMBOL_BITS);
+				if (c < 0 || c >= SYMBOLS) {
+					throw new IllegalArgumentException("Bad character: " + c);
+				}
+			} else {
+				c = this.symbol[node];
+			}
+			if (c == 256) {
+				return;
+			}
+			out.writeBits(c, 8);
+			update(c);
+		}
+	}
+
+	/** Writes the code of one character and updates the tree
+	 * @param c the character
+	 * @param out the BitOutputStream being written to
+	 */
+	private void encodeSymbol(int c, BitOutputStream out) {
+		int node = this.leafOf[c];
+		writePath(node == -1 ? this.nyt : node, out);
+		if (node == -1) {
+			out.writeBits(c, SYMBOL_BITS);
+		}
+		update(c);
+	}
+
+	/** Writes the path from the root to a node
+	 * @param node the node
+	 * @param out the BitOutputStream being written to
+	 */
+	private void writePath(int node, BitOutputStream out) {
+		long code = 0;  // path bits gathered from the node upwards
+		int length = 0;
+		while (node != ROOT) {
+			int p = this.parent[node];
+			if (this.right[p] == node) {
+				code |= 1L << length;
+			}
+			length++;
+			node = p;
+		}
+		if (length > Integer.SIZE) {
+			out.writeBits((int) (code >>> Integer.SIZE), length - Integer.SIZE);
+			length = Integer.SIZE;
+		}
+		out.writeBits((int) code, length);
+	}
+
+	/** Counts one more occurrence of a character, first giving it a leaf split
+	 * off the NYT node if it is new, then incrementing the weights on its path
+	 * to the root while keeping the sibling property
+	 * @param c the character
+	 */
+	private void update(int c) {
+		if (this.weight[ROOT] >= MAX_WEIGHT) {
+			reset();
+		}
+
+		int node = this.leafOf[c];
+		if (node == -1) {
+			int leaf = this.nyt - 1;
+			int newNyt = this.nyt - 2;
+			this.left[this.nyt] = newNyt;
+			this.right[this.nyt] = leaf;
+			this.parent[newNyt] = this.nyt;
+			this.parent[leaf] = this.nyt;
+			this.symbol[leaf] = c;
+			this.leafOf[c] = leaf;
+			this.nyt = newNyt;
+			node = leaf;
+		}
+
+		while (node != -1) {
+			int leader = node;
+			while (leader < ROOT && this.weight[leader + 1] == this.weight[node]) {
+				leader++;
+			}
+			if (leader != node && leader != this.parent[node]) {
+				swap(node, leader);
+				node = leader;
+			}
+			this.weight[node]++;
+			node = this.parent[node];
+		}
+	}
+
+	/** Exchanges the subtrees at two node numbers of equal weight. Each number
+	 * keeps its parent; the subtrees move.
+	 * @param a a node number
+	 * @param b another node number
+	 */
+	private void swap(int a, int b) {
+		int t = this.left[a];
+		this.left[a] = this.left[b];
+		this.left[b] = t;
+		t = this.right[a];
+		this.right[a] = this.right[b];
+		this.right[b] = t;
+		t = this.symbol[a];
+		this.symbol[a] = this.symbol[b];
+		this.symbol[b] = t;
+		if (this.nyt == a) {
+			this.nyt = b;
+		} else if (this.nyt == b) {
+			this.nyt = a;
+		}
+		adopt(a);
+		adopt(b);
+	}
+
+	/** Points the children (or the character) of a node back at it after a swap
+	 * @param node the node number
+	 */
+	private void adopt(int node) {
+		if (this.left[node] != -1) {
+			this.parent[this.left[node]] = node;
+			this.parent[this.right[node]] = node;
+		} else if (node != this.nyt) {
+			this.leafOf[this.symbol[node]] = node;
+		}
+	}
+}
@@ -0,0 +1,246 @@
+import java.nio.ByteBuffer;
+
+/** A table-based asymmetric numeral system (tANS) coder, as in FSE. Byte
+ * frequencies are normalised to sum to a table of 2^TABLE_LOG states, and
+ * every byte value owns as many states as its normalised frequency. Coding
+ * a byte moves the coder from one state to another and emits a few low bits
+ * of the old state, so a byte of probability p costs close to -log2(p) bits,
+ * fractions included, where a Huffman code must round to whole bits.
+ * Decoding is one table lookup and one bit read per byte.
+ *
+ * ANS decodes in the reverse order it encodes, so encode walks the bytes
+ * backwards, keeps the bits it emits, and writes them last to first after
+ * the final state. The decoder then reads them forwards.
+ *
+ * The header is the number of byte values present (9 bits), then each
+ * one's value (8 bits) and its normalised frequency less one (TABLE_LOG
+ * bits).
+ */
+public class AnsCoder implements EntropyCoder {
+
+	/** log2 of the number of states */
+	public static final int TABLE_LOG = 11;
+
+	/** Number of states */
+	private static final int TABLE_SIZE = 1 << TABLE_LOG;
+
+	/** Header field widths */
+	private static final int COUNT_BITS = 9;
+	private static final int SYMBOL_BITS = 8;
+
+	private int[] normalized;    // states owned by each byte value
+	private int[] decodeTable;   // byte | bits to read << 8 | next state base << 12
+	private int[] encodeTable;   // states of each byte value, in order, from start[c]
+	private int[] start;         // where each byte value's states begin in encodeTable
+	private int[] maxBits;       // bits emitted for a byte value from a high state
+	private int[] threshold;     // states at or above which maxBits are emitted
+
+	/** Constructs a coder for the bytes a histogram counts
+	 * @param counts the number of occurrences of each byte value, not all 0
+	 */
+	public AnsCoder(long[] counts) {
+		this(normalize(counts));
+	}
+
+	/** Constructs a coder from normalised frequencies
+	 * @param normalized the states owned by each byte value, summing to
+	 *        TABLE_SIZE
+	 */
+	private AnsCoder(int[] normalized) {
+		this.normalized = normalized;
+		buildTables();
+	}
+
+	/** Scales counts to sum to TABLE_SIZE, giving every byte that occurs at
+	 * least one state. Rounding is settled one state at a time, each time
+	 * moving the state that costs or saves the most bits.
+	 * @param counts the number of occurrences of each byte value
+	 * @return the normalised frequencies
+	 */
+	private static int[] normalize(long[] counts) {
+		long total = Histogram.total(counts);
+		if (total == 0) {
+			throw new IllegalArgumentException("Cannot build a coder for no bytes");
+		}
+		int[] normalized = new int[Histogram.SYMBOLS];
+		int sum = 0;
+		for (int c = 0; c < Histogram.SYMBOLS; c++) {
+			if (counts[c] > 0) {
+				normalized[c] = (int) Math.max(1, counts[c] * TABLE_SIZE / total);
+				sum += normalized[c];
+			}
+		}
+
+		while (sum != TABLE_SIZE) {
+			int best = -1;
+			double bestCost = Double.MAX_VALUE;
+			for (int c = 0; c < Histogram.SYMBOLS; c++) {
+				if (counts[c] == 0 || (sum > TABLE_SIZE && normalized[c] == 1)) {
+					continue;
+				}
+				/* Bits a state more saves, or a state less costs, this byte */
+				int n = normalized[c];
+				double cost = sum < TABLE_SIZE ? -counts[c] * Math.log((n + 1.0) / n)
+						: counts[c] * Math.log(n / (n - 1.0));
+				if (cost < bestCost) {
+					best = c;
+					bestCost = cost;
+				}
+			}
+			normalized[best] += sum < TABLE_SIZE ? 1 : -1;
+			sum += sum < TABLE_SIZE ? 1 : -1;
+		}
+		return normalized;
+	}
+
+	/** Spreads the byte values over the states and builds the tables that
+	 * step between them. Each byte value's states are scattered across the
+	 * table by a fixed odd step, so a byte's next state depends little on
+	 * which of its states the coder was in.
+	 */
+	private void buildTables() {
+		int[] spread = new int[TABLE_SIZE];
+		int step = (TABLE_SIZE >> 1) + (TABLE_SIZE >> 3) + 3;
+		int position = 0;
+		for (int c = 0; c < Histogram.SYMBOLS; c++) {
+			for (int i = 0; i < this.normalized[c]; i++) {
+				spread[position] = c;
+				position = (position + step) & (TABLE_SIZE - 1);
+			}
+		}
+
+		this.start = new int[Histogram.SYMBOLS];
+		this.maxBits = new int[Histogram.SYMBOLS];
+		this.threshold = new int[Histogram.SYMBOLS];
+		int[] next = new int[Histogram.SYMBOLS];
+		for (int c = 0, sum = 0; c < Histogram.SYMBOLS; c++) {
+			this.start[c] = sum;
+			sum += this.normalized[c];
+			next[c] = this.normalized[c];
+			if (this.normalized[c] > 0) {
+				this.maxBits[c] = TABLE_LOG - log2(this.normalized[c]);
+				this.threshold[c] = this.normalized[c] << this.maxBits[c];
+			}
+		}
+
+		/* State s of a byte value c is reached from sub-state next[c]++ */
+		this.decodeTable = new int[TABLE_SIZE];
+		this.encodeTable = new int[TABLE_SIZE];
+		for (int s = 0; s < TABLE_SIZE; s++) {
+			int c = spread[s];
+			int x = next[c]++;
+			int bits = TABLE_LOG - log2(x);
+			this.decodeTable[s] = c | bits << 8 | ((x << bits) - TABLE_SIZE) << 12;
+			this.encodeTable[this.start[c] + x - this.normalized[c]] = s + TABLE_SIZE;
+		}
+	}
+
+	/** @param x a positive number
+	 * @return the floor of its base-2 logarithm */
+	private static int log2(int x) {
+		return 31 - Integer.numberOfLeadingZeros(x);
+	}
+
+	public int getHeaderBits() {
+		int n = 0;
+		for (int c = 0; c < Histogram.SYMBOLS; c++) {
+			if (this.normalized[c] > 0) {
+				n++;
+			}
+		}
+		return COUNT_BITS + n * (SYMBOL_BITS + TABLE_LOG);
+	}
+
+	public void writeHeader(BitOutputStream out) {
+		int n = 0;
+		for (int c = 0; c < Histogram.SYMBOLS; c++) {
+			if (this.normalized[c] > 0) {
+				n++;
+			}
+		}
+		out.writeBits(n, COUNT_BITS);
+		for (int c = 0; c < Histogram.SYMBOLS; c++) {
+			if (this.normalized[c] > 0) {
+				out.writeBits(c, SYMBOL_BITS);
+				out.writeBits(this.normalized[c] - 1, TABLE_LOG);
+			}
+		}
+	}
+
+	/** Reads a header written by writeHeader
+	 * @param in the BitInputStream being read
+	 * @return the AnsCoder the header describes
+	 */
+	public static AnsCoder readHeader(BitInputStream in) {
+		int[] normalized = new int[Histogram.SYMBOLS];
+		int n = in.readBits(COUNT_BITS);
+		if (n < 1 || n > Histogram.SYMBOLS) {
+			throw new IllegalArgumentException("Bad tANS header");
+		}
+		int sum = 0;
+		for (int i = 0; i < n; i++) {
+			int c = in.readBits(SYMBOL_BITS);
+			int count = in.readBits(TABLE_LOG);
+			if (c < 0 || count < 0 || normalized[c] > 0) {
+				throw new IllegalArgumentException("Bad tANS header");
+			}
+			normalized[c] = count + 1;
+			sum += normalized[c];
+		}
+		if (sum != TABLE_SIZE) {
+			throw new IllegalArgumentException("tANS frequencies sum to " + sum + ", not " + TABLE_SIZE);
+		}
+		return new AnsCoder(normalized);
+	}
+
+	/** The cost of a byte is TABLE_LOG - log2 of its normalised frequency,
+	 * plus the final state once per block
+	 */
+	public long getCodedBits(long[] counts) {
+		double bits = TABLE_LOG;
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] > 0 && this.normalized[c] == 0) {
+				return Long.MAX_VALUE;
+			} else if (counts[c] > 0) {
+				bits += counts[c] * (TABLE_LOG - Math.log(this.normalized[c]) / Math.log(2));
+			}
+		}
+		return (long) Math.ceil(bits);
+	}
+
+	public void encode(ByteBuffer data, BitOutputStream out) {
+		int n = data.remaining();
+		int[] emitted = new int[n]; // bits << 4 | number of bits, per byte
+		int state = TABLE_SIZE;
+		for (int i = n - 1; i >= 0; i--) {
+			int c = data.get(data.position() + i) & 0xFF;
+			if (this.normalized[c] == 0) {
+				throw new IllegalArgumentException("No code for character: " + c);
+			}
+			int bits = state >= this.threshold[c] ? this.maxBits[c] : this.maxBits[c] - 1;
+			emitted[i] = (state & ((1 << bits) - 1)) << 4 | bits;
+			state = this.encodeTable[this.start[c] + (state >> bits) - this.normalized[c]];
+		}
+
+		out.writeBits(state - TABLE_SIZE, TABLE_LOG);
+		for (int i = 0; i < n; i++) {
+			out.writeBits(emitted[i] >>> 4, emitted[i] & 0xF);
+		}
+	}
+
+	public void decode(BitInputStream in, ByteBuffer out, int n) {
+		int state = in.readBits(TABLE_LOG);
+		if (state < 0) {
+			throw new IllegalArgumentException("Input ended before the first state");
+		}
+		for (int i = 0; i < n; i++) {
+			int entry = this.decodeTable[state];
+			out.put((byte) entry);
+			int bits = in.readBits((entry >>> 8) & 0xF);
+			if (bits < 0) {
+				throw new IllegalArgumentException("Input ended inside a code");
+			}
+			state = (entry >>> 12) + bits;
+		}
+	}
+}
@@ -1,27 +1,88 @@
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
 
 /**
- * A BitInputStream reads a file bit-by-bit.
+ * A BitInputStream reads a file bit-by-bit. Bytes are read from the file in
+ * large blocks, or mapped into memory a chunk at a time, and shifted into a
+ * 64-bit window that bits are taken from.
  */
 public class BitInputStream {
-    private FileInputStream input;
-    private int digits;     // next set of digits (buffer)
-    private int cursor;     // how many digits from buffer have been used
+    private ReadableByteChannel input;
+    private ByteBuffer buffer;  // bytes read from the file but not yet used
+    private long unread;        // bytes of the file not yet read into buffer,
+                                // or UNKNOWN until a stream's end is reached
+    private boolean mapped;     // true iff buffer is a mapped chunk of the file
+    private long digits;        // window of upcoming bits, right-aligned
+    private int cursor;         // how many bits of the window are valid
 
-    private static final int BYTE_SIZE = 8;  // digits per byte
+    private static final int BYTE_SIZE = 8;             // digits per byte
+    private static final int BUFFER_SIZE = 1 << 16;     // bytes per block read
+    private static final int CHUNK_SIZE = 1 << 30;      // bytes per mapping
+    private static final long UNKNOWN = Long.MAX_VALUE / 16;
 
     /**
      * Constructs a new BitInputStream attached to the given file
      * @param file the file to open
      */
     public BitInputStream(String file) throws IOException {
-        input = new FileInputStream(file);
-        nextByte();
+        this(file, false);
+    }
+
+    /**
+     * Constructs a new BitInputStream attached to the given file
+     * @param file the file to open
+     * @param mapped true iff the file should be memory-mapped rather than
+     *        read into a buffer; files over CHUNK_SIZE are mapped in chunks
+     */
+    public BitInputStream(String file, boolean mapped) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        this.input = channel;
+        this.unread = channel.size();
+        this.mapped = mapped;
+        if (mapped) {
+            buffer = ByteBuffer.allocate(0);
+        } else {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.flip();
+        }
+        refill();
+    }
+
+    /**
+     * Constructs a new BitInputStream attached to a channel of unknown length,
+     * such as a pipe. Until the end of the channel is reached bitsRemaining
+     * is only an upper bound.
+     * @param input the channel to read
+     */
+    public BitInputStream(ReadableByteChannel input) {
+        this.input = input;
+        this.unread = UNKNOWN;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+        refill();
+    }
+
+    /**
+     * Constructs a new BitInputStream over the remaining bytes of a buffer.
+     * The buffer's position is not moved.
+     * @param data the bytes to read
+     */
+    public BitInputStream(ByteBuffer data) {
+        this.buffer = data.slice();
+        refill();
     }
 
     /** @return true iff the stream has bits left to produce */
-    public boolean hasBits() { return digits == -1; }
+    public boolean hasBits() { return bitsRemaining() > 0; }
+
+    /** @return the number of bits left in the stream */
+    public long bitsRemaining() {
+        return cursor + (unread + buffer.remaining()) * BYTE_SIZE;
+    }
 
     /**
      * Reads a bit from the stream in big-endian order (msb first)
@@ -29,12 +90,7 @@ public class BitInputStream {
      *         of data
      **/
     public int readBit() {
-        // if at eof, return -1
-        if (digits == -1) { return -1; }
-        int result = (digits & (1 << cursor)) >> cursor;
-        cursor--;
-        if (cursor < 0) { nextByte(); }
-        return result;
+        return readBits(1);
     }
 
     /**
@@ -43,27 +99,157 @@ public class BitInputStream {
      *         if the stream runs out of data
      */
     public int readBits(int n) {
-        int ret = 0;
-        for (int i = n - 1; i >= 0; i--) {
-            int bit = readBit();
-            if (bit == -1) { return -1; }
-            ret = ret | (bit << i);
+        if (cursor < n) {
+            refill();
+            if (cursor < n) { return -1; }
+        }
+        cursor -= n;
+        return (int) (digits >>> cursor) & mask(n);
+    }
+
+    /**
+     * Looks at the next n bits without consuming them. Past the end of the
+     * stream the result is padded with 0s in the least-significant bits.
+     * @param n the number of bits to look at (0--32)
+     * @return the next n bits of the stream packed in a single integer
+     */
+    public int peekBits(int n) {
+        if (cursor < n) {
+            refill();
+            if (cursor < n) {
+                return (int) (digits << (n - cursor)) & mask(n);
+            }
+        }
+        return (int) (digits >>> (cursor - n)) & mask(n);
+    }
+
+    /**
+     * Consumes the next n bits. Skipping past the end of the stream leaves
+     * the stream empty.
+     * @param n the number of bits to skip
+     */
+    public void skipBits(long n) {
+        while (n > cursor) {
+            n -= cursor;
+            cursor = 0;
+            if (!refill()) { return; }
+        }
+        cursor -= (int) n;
+    }
+
+    /**
+     * Reads the next n bytes. When the stream is at a byte boundary the bytes
+     * are copied in bulk, or returned without copying if they are already in
+     * memory. The window is left empty and refilled by the next read, so
+     * the bytes are not overwritten by the next block of the file before
+     * then.
+     * @param n the number of bytes to read
+     * @return a buffer holding the bytes read, which holds fewer than n bytes
+     *         if the stream runs out of data; it is only valid until the
+     *         next read from the stream
+     */
+    public ByteBuffer readBytes(int n) {
+        if (cursor % BYTE_SIZE == 0 && buffer.position() >= cursor / BYTE_SIZE) {
+            // hand the whole bytes in the window back to the buffer
+            buffer.position(buffer.position() - cursor / BYTE_SIZE);
+            cursor = 0;
+            if (buffer.remaining() >= n) {
+                ByteBuffer result = buffer.slice(buffer.position(), n);
+                buffer.position(buffer.position() + n);
+                return result;
+            }
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(n);
+        if (cursor % BYTE_SIZE == 0) {
+            while (result.hasRemaining() && cursor > 0) {
+                cursor -= BYTE_SIZE;
+                result.put((byte) (digits >>> cursor));
+            }
+            while (result.hasRemaining()) {
+                if (!buffer.hasRemaining() && !nextBlock()) { break; }
+                int count = Math.min(result.remaining(), buffer.remaining());
+                result.put(buffer.slice(buffer.position(), count));
+                buffer.position(buffer.position() + count);
+            }
+        } else {
+            while (result.hasRemaining()) {
+                int b = readBits(BYTE_SIZE);
+                if (b == -1) { break; }
+                result.put((byte) b);
+            }
         }
-        return ret;
+        result.flip();
+        refill();
+        return result;
+    }
+
+    /** @return an int with the low n bits set */
+    private static int mask(int n) {
+        return n == 0 ? 0 : -1 >>> (Integer.SIZE - n);
     }
 
-    /** Refreshes the internal buffer with the next BYTE_SIZE bits. */
-    private void nextByte() {
+    /**
+     * Tops up the window with bytes from the buffer, reading the next block of
+     * the file once the buffer is used up.
+     * @return true iff any bits were added to the window
+     */
+    private boolean refill() {
+        int before = cursor;
+        if (cursor <= Integer.SIZE && buffer.remaining() >= Integer.BYTES) {
+            digits = (digits << Integer.SIZE) | (buffer.getInt() & 0xFFFFFFFFL);
+            cursor += Integer.SIZE;
+        }
+        while (cursor <= Long.SIZE - BYTE_SIZE) {
+            if (!buffer.hasRemaining() && !nextBlock()) { break; }
+            digits = (digits << BYTE_SIZE) | (buffer.get() & 0xFF);
+            cursor += BYTE_SIZE;
+        }
+        return cursor > before;
+    }
+
+    /**
+     * Refreshes the internal buffer with the next block of the file.
+     * @return true iff any bytes were read
+     */
+    private boolean nextBlock() {
+        if (unread == 0) { return false; }
+        if (mapped) { return nextChunk(); }
+        buffer.clear();
+        try {
+            while (buffer.position() == 0) {
+                if (input.read(buffer) == -1) {
+                    unread = buffer.position();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+        buffer.flip();
+        unread -= buffer.remaining();
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Maps the next chunk of the file in place of the current one.
+     * @return true iff any bytes were mapped
+     */
+    private boolean nextChunk() {
+        FileChannel channel = (FileChannel) input;
+        long size = Math.min(unread, CHUNK_SIZE);
         try {
-            digits = input.read();
+            buffer = channel.map(MapMode.READ_ONLY, channel.size() - unread, size);
         } catch (IOException e) {
             throw new RuntimeException(e.toString());
         }
-        cursor = BYTE_SIZE - 1;
+        unread -= size;
+        return buffer.hasRemaining();
     }
 
     /** Closes the stream, flushing any remaining bits to the file. */
     public void close() {
+        if (input == null) { return; }
         try {
             input.close();
         } catch (IOException e) {
@@ -74,4 +260,4 @@ public class BitInputStream {
     protected void finalize() {
         close();
     }
-}
\ No newline at end of file
+}
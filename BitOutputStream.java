@@ -1,18 +1,24 @@
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
- * A BitOutputStream allows bit-by-bit writing to a file.
+ * A BitOutputStream allows bit-by-bit writing to a file. Bits are gathered in
+ * a 64-bit accumulator and written to the file in large blocks.
  */
 public class BitOutputStream {
-    private PrintStream output;
-    private int digits;     // a buffer used to build up next set of digits
-    private int cursor;     // our current position in the buffer.
-    private boolean debug;  // set to true to write ASCII 0s and 1s rather than
-                            // bits
+    private WritableByteChannel output;
+    private ByteBuffer buffer;  // bytes waiting to be written to the channel
+    private long digits;        // accumulator holding the pending bits
+    private int cursor;         // how many bits of the accumulator are pending
+    private long drained;       // bytes handed to the channel so far
+    private boolean debug;      // set to true to write ASCII 0s and 1s rather
+                                // than bits
 
-    private static final int BYTE_SIZE = 8; // digits per byte
+    private static final int BYTE_SIZE = 8;             // digits per byte
+    private static final int BUFFER_SIZE = 1 << 16;     // bytes per block write
 
     /**
      * Constructs a new BitOutputStream attached to the given file.
@@ -21,10 +27,11 @@ public class BitOutputStream {
      * @throws FileNotFoundException if the file is not found
      */
     public BitOutputStream(String file, boolean debug) throws IOException {
-        this.output = new PrintStream(file);
+        this.output = new FileOutputStream(file).getChannel();
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
         this.debug = debug;
         digits = 0;
-        cursor = BYTE_SIZE - 1;
+        cursor = 0;
     }
 
     /**
@@ -36,6 +43,20 @@ public class BitOutputStream {
         this(file, false);
     }
 
+    /**
+     * Constructs a new BitOutputStream attached to the given channel.
+     * @param output the channel to write to
+     */
+    public BitOutputStream(WritableByteChannel output) {
+        this.output = output;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /** @return the number of bits written to the stream so far */
+    public long bitsWritten() {
+        return (drained + buffer.position()) * BYTE_SIZE + cursor;
+    }
+
     /**
      * Writes the given bit to the stream.
      * @param bit the bit to write (0 or 1)
@@ -43,51 +64,125 @@ public class BitOutputStream {
     public void writeBit(int bit) {
         if (bit < 0 || bit > 1) {
             throw new IllegalArgumentException("Illegal bit: " + bit);
-        } else if (debug) {
-            output.print(bit);
-        } else {
-            digits += bit << cursor;
-            cursor--;
-            if (cursor < 0) {
-                flush();
-            }
         }
+        writeBits(bit, 1);
     }
 
     /**
      * Writes the lower n bits to the stream in big-endian style.
      * @param bits the bits to write as an integer
-     * @param n the number of bits to write from the integer
+     * @param n the number of bits to write from the integer (0--32)
      */
     public void writeBits(int bits, int n) {
-        for (int i = n-1; i >= 0; i--) {
-            writeBit((bits >>> i) % 2);
+        if (n < 0 || n > Integer.SIZE) {
+            throw new IllegalArgumentException("Illegal bit count: " + n);
+        } else if (debug) {
+            for (int i = n - 1; i >= 0; i--) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                buffer.put((byte) ('0' + ((bits >>> i) & 1)));
+            }
+            return;
+        } else if (n == 0) {
+            return;
+        }
+        digits = (digits << n) | (bits & (-1L >>> (Long.SIZE - n)));
+        cursor += n;
+        if (cursor >= Integer.SIZE) {
+            if (buffer.remaining() < Integer.BYTES) {
+                drain();
+            }
+            cursor -= Integer.SIZE;
+            buffer.putInt((int) (digits >>> cursor));
         }
     }
 
     /**
-     * Flushes the buffer. If numDigits < BYTE_SIZE, flush will pad the output
-     * with extra 0s in the least-significant bits so that a full byte is
-     * written to the file.
+     * Writes the remaining bytes of a buffer to the stream. When the stream
+     * is at a byte boundary the bytes are copied in bulk, and large buffers
+     * are handed to the channel directly.
+     * @param bytes the bytes to write
      */
-    private void flush() {
-        if (cursor == BYTE_SIZE - 1) {
+    public void writeBytes(ByteBuffer bytes) {
+        if (debug || cursor % BYTE_SIZE != 0) {
+            while (bytes.hasRemaining()) {
+                writeBits(bytes.get(), BYTE_SIZE);
+            }
+            return;
+        }
+        flushBits();
+        if (bytes.remaining() >= BUFFER_SIZE) {
+            drain();
+            try {
+                while (bytes.hasRemaining()) {
+                    drained += output.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.toString());
+            }
             return;
         }
-        output.write(digits);
+        while (bytes.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int count = Math.min(bytes.remaining(), buffer.remaining());
+            buffer.put(bytes.slice(bytes.position(), count));
+            bytes.position(bytes.position() + count);
+        }
+    }
+
+    /**
+     * Flushes the stream to its channel. If the pending bits do not fill a
+     * whole byte, flush will pad the output with extra 0s in the
+     * least-significant bits so that a full byte is written to the file.
+     */
+    public void flush() {
+        flushBits();
+        drain();
+    }
+
+    /** Moves the pending bits into the buffer, padding them to a whole byte. */
+    private void flushBits() {
+        while (cursor > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int shift = cursor - BYTE_SIZE;
+            buffer.put((byte) (shift >= 0 ? digits >>> shift : digits << -shift));
+            cursor = Math.max(shift, 0);
+        }
         digits = 0;
-        cursor = BYTE_SIZE - 1;
+    }
+
+    /** Writes the buffered bytes to the channel. */
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                drained += output.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+        buffer.clear();
     }
 
     /** Closes the stream, flushing any remaining bits to the file */
     public void close() {
-        if (cursor >= 0) {
-            flush();
+        if (!output.isOpen()) {
+            return;
+        }
+        flush();
+        try {
+            output.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
         }
-        output.close();
     }
 
     protected void finalize() {
         close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** A WritableByteChannel that collects what is written to it in a ByteBuffer,
+ * so a BitOutputStream can write to memory. The buffer is either supplied by
+ * the caller, and may be direct, or grown as needed.
+ */
+public class ByteBufferChannel implements WritableByteChannel {
+
+	/** Largest heap buffer the VM reliably allocates */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private ByteBuffer buffer;
+	private int start;         // position of the first byte written
+	private boolean growable;
+	private boolean open = true;
+
+	/** Constructs a channel writing into a heap buffer that grows as needed
+	 * @param capacity the initial capacity
+	 */
+	public ByteBufferChannel(int capacity) {
+		this.buffer = ByteBuffer.allocate(Math.max(capacity, 16));
+		this.growable = true;
+	}
+
+	/** Constructs a channel writing into the given buffer from its position.
+	 * Writing more than fits throws a BufferOverflowException.
+	 * @param buffer the buffer to write into
+	 */
+	public ByteBufferChannel(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.start = buffer.position();
+		this.growable = false;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		int n = src.remaining();
+		if (n > this.buffer.remaining()) {
+			if (!this.growable) {
+				throw new BufferOverflowException();
+			}
+			long needed = (long) this.buffer.position() + n;
+			if (needed > MAX_CAPACITY) {
+				throw new IllegalArgumentException("Cannot hold " + needed + " bytes in memory; the limit is "
+						+ MAX_CAPACITY);
+			}
+			int capacity = (int) Math.min(MAX_CAPACITY, Math.max(2L * this.buffer.capacity(), needed));
+			ByteBuffer bigger = ByteBuffer.allocate(capacity);
+			this.buffer.flip();
+			bigger.put(this.buffer);
+			this.buffer = bigger;
+		}
+		this.buffer.put(src);
+		return n;
+	}
+
+	/** @return a view of the bytes written so far, between its position and
+	 *          its limit */
+	public ByteBuffer getBuffer() {
+		ByteBuffer result = this.buffer.duplicate();
+		result.limit(result.position());
+		result.position(this.start);
+		return result;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public void close() {
+		this.open = false;
+	}
+}
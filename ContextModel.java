@@ -0,0 +1,277 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** An order-1 context model: each byte is coded with a HuffmanTree chosen by
+ * the byte before it. Giving each of the 256 contexts its own tree would make
+ * the header larger than the savings on all but huge blocks, so contexts with
+ * similar statistics are clustered and each cluster shares one tree.
+ *
+ * The header is the number of clusters less one (4 bits), the cluster of each
+ * context (just wide enough for the number of clusters), and the code length
+ * header of each cluster's tree. The first byte of a block has context 0.
+ */
+public class ContextModel {
+
+	/** Most clusters a model may have */
+	public static final int MAX_CLUSTERS = 16;
+
+	/** Number of contexts, one per preceding byte value */
+	private static final int CONTEXTS = 256;
+
+	/** Rounds of reassigning contexts to clusters */
+	private static final int ROUNDS = 4;
+
+	private int clusters;
+	private int[] clusterOf;      // cluster of each context
+	private HuffmanTree[] trees;  // tree of each cluster
+
+	/** Constructor
+	 * @param clusterOf the cluster of each context
+	 * @param trees the tree of each cluster
+	 */
+	private ContextModel(int[] clusterOf, HuffmanTree[] trees) {
+		this.clusters = trees.length;
+		this.clusterOf = clusterOf;
+		this.trees = trees;
+	}
+
+	/** Builds a model for a block of data. Clusterings into 1, 2, 4, 8 and 16
+	 * clusters are tried, each found by seeding clusters with the busiest
+	 * contexts and then moving every context to the cluster whose statistics
+	 * code it in the fewest bits. The clustering whose trees, headers and
+	 * context map are smallest wins.
+	 * @param data the bytes to model; its position is not moved
+	 * @param maxCodeLength the longest code allowed
+	 * @return the model
+	 */
+	public static ContextModel build(ByteBuffer data, int maxCodeLength) {
+		long[][] counts = new long[CONTEXTS][Histogram.SYMBOLS];
+		long[] totals = new long[CONTEXTS];
+		int prev = 0;
+		for (int i = data.position(); i < data.limit(); i++) {
+			int c = data.get(i) & 0xFF;
+			counts[prev][c]++;
+			totals[prev]++;
+			prev = c;
+		}
+
+		/* Contexts that occur, busiest first */
+		int active = 0;
+		long[] order = new long[CONTEXTS];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			if (totals[ctx] > 0) {
+				order[active++] = (totals[ctx] << 8) | ctx;
+			}
+		}
+		Arrays.sort(order, 0, active);
+		int[] contexts = new int[active];
+		for (int j = 0; j < active; j++) {
+			contexts[j] = (int) order[active - 1 - j] & 0xFF;
+		}
+
+		ContextModel best = null;
+		long bestBits = Long.MAX_VALUE;
+		for (int k = 1; k <= MAX_CLUSTERS && k <= Math.max(active, 1); k *= 2) {
+			ContextModel model = cluster(counts, contexts, k, maxCodeLength);
+			long bits = model.getHeaderBits() + model.getCodedBits();
+			if (bits < bestBits) {
+				best = model;
+				bestBits = bits;
+			}
+		}
+		return best;
+	}
+
+	/** Clusters the contexts that occur into at most k clusters
+	 * @param counts the histogram of each context
+	 * @param contexts the contexts that occur, busiest first
+	 * @param k the number of clusters to seed
+	 * @param maxCodeLength the longest code allowed
+	 * @return the model, without any clusters left empty
+	 */
+	private static ContextModel cluster(long[][] counts, int[] contexts, int k, int maxCodeLength) {
+		int[] clusterOf = new int[CONTEXTS];
+		for (int j = 0; j < contexts.length; j++) {
+			clusterOf[contexts[j]] = Math.min(j, k - 1);
+		}
+
+		for (int round = 0; round < ROUNDS && k > 1; round++) {
+			long[][] sums = sumClusters(counts, contexts, clusterOf, k);
+
+			/* Bits to code each character in each cluster, smoothed so that
+			 * characters a cluster has not seen yet are expensive but finite */
+			double[][] cost = new double[k][Histogram.SYMBOLS];
+			for (int q = 0; q < k; q++) {
+				double total = Math.log(Histogram.total(sums[q]) + Histogram.SYMBOLS / 2.0);
+				for (int c = 0; c < Histogram.SYMBOLS; c++) {
+					cost[q][c] = total - Math.log(sums[q][c] + 0.5);
+				}
+			}
+
+			for (int ctx : contexts) {
+				double bestCost = Double.MAX_VALUE;
+				for (int q = 0; q < k; q++) {
+					double bits = 0;
+					for (int c = 0; c < Histogram.SYMBOLS; c++) {
+						bits += counts[ctx][c] * cost[q][c];
+					}
+					if (bits < bestCost) {
+						bestCost = bits;
+						clusterOf[ctx] = q;
+					}
+				}
+			}
+		}
+
+		/* Drop empty clusters and build a tree for each of the rest */
+		long[][] sums = sumClusters(counts, contexts, clusterOf, k);
+		int[] renumber = new int[k];
+		int used = 0;
+		for (int q = 0; q < k; q++) {
+			renumber[q] = Histogram.total(sums[q]) > 0 || (q == 0 && contexts.length == 0) ? used++ : -1;
+		}
+		HuffmanTree[] trees = new HuffmanTree[used];
+		for (int q = 0; q < k; q++) {
+			if (renumber[q] >= 0) {
+				trees[renumber[q]] = new HuffmanTree(Histogram.toFrequencies(sums[q]), maxCodeLength);
+			}
+		}
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			clusterOf[ctx] = Math.max(renumber[clusterOf[ctx]], 0);
+		}
+		return new ContextModel(clusterOf, trees);
+	}
+
+	/** Adds up the histograms of the contexts in each cluster
+	 * @param counts the histogram of each context
+	 * @param contexts the contexts that occur
+	 * @param clusterOf the cluster of each context
+	 * @param k the number of clusters
+	 * @return the histogram of each cluster
+	 */
+	private static long[][] sumClusters(long[][] counts, int[] contexts, int[] clusterOf, int k) {
+		long[][] sums = new long[k][Histogram.SYMBOLS];
+		for (int ctx : contexts) {
+			Histogram.add(sums[clusterOf[ctx]], counts[ctx]);
+		}
+		return sums;
+	}
+
+	/** @return the number of bits each context's cluster takes in the header */
+	private int mapBits() {
+		return Integer.SIZE - Integer.numberOfLeadingZeros(this.clusters - 1);
+	}
+
+	/** @return the number of bits writeHeader writes */
+	public long getHeaderBits() {
+		long bits = 4 + (long) CONTEXTS * mapBits();
+		for (HuffmanTree tree : this.trees) {
+			bits += tree.getHeaderBits();
+		}
+		return bits;
+	}
+
+	/** @return the number of code bits the modelled bytes take */
+	public long getCodedBits() {
+		long bits = 0;
+		for (HuffmanTree tree : this.trees) {
+			bits += tree.getCodedBits();
+		}
+		return bits;
+	}
+
+	/** @return the number of code bits the modelled bytes would take with no
+	 *          limit on code length */
+	public long getOptimalBits() {
+		long bits = 0;
+		for (HuffmanTree tree : this.trees) {
+			bits += tree.getOptimalBits();
+		}
+		return bits;
+	}
+
+	/** @return the number of clusters, and so of trees */
+	public int getClusters() {
+		return this.clusters;
+	}
+
+	/** Writes the cluster count, context map and trees
+	 * @param out the BitOutputStream being written to
+	 */
+	public void writeHeader(BitOutputStream out) {
+		out.writeBits(this.clusters - 1, 4);
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			out.writeBits(this.clusterOf[ctx], mapBits());
+		}
+		for (HuffmanTree tree : this.trees) {
+			tree.writeHeader(out);
+		}
+	}
+
+	/** Reads a header written by writeHeader
+	 * @param in the BitInputStream being read
+	 * @return the model the header describes
+	 */
+	public static ContextModel readHeader(BitInputStream in) {
+		int clusters = in.readBits(4) + 1;
+		if (clusters == 0) {
+			throw new IllegalArgumentException("Input ended before the header");
+		}
+		int bits = Integer.SIZE - Integer.numberOfLeadingZeros(clusters - 1);
+		int[] clusterOf = new int[CONTEXTS];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			clusterOf[ctx] = in.readBits(bits);
+			if (clusterOf[ctx] < 0 || clusterOf[ctx] >= clusters) {
+				throw new IllegalArgumentException("Bad context map");
+			}
+		}
+		HuffmanTree[] trees = new HuffmanTree[clusters];
+		for (int q = 0; q < clusters; q++) {
+			trees[q] = HuffmanTree.readHeader(in);
+		}
+		return new ContextModel(clusterOf, trees);
+	}
+
+	/** Codes each byte with the tree of its context. No EOF code is written,
+	 * so the decoder must be told how many bytes there are.
+	 * @param data the bytes to code; its position is not moved
+	 * @param out the BitOutputStream being written to
+	 */
+	public void encode(ByteBuffer data, BitOutputStream out) {
+		HuffmanTree[] byContext = treesByContext();
+		int prev = 0;
+		for (int i = data.position(); i < data.limit(); i++) {
+			int c = data.get(i) & 0xFF;
+			byContext[prev].writeCode(c, out);
+			prev = c;
+		}
+	}
+
+	/** Decodes bytes written by encode, each through the decode table of its
+	 * context's tree
+	 * @param in the BitInputStream being read
+	 * @param out the buffer to put the bytes in
+	 * @param n the number of bytes to decode
+	 */
+	public void decode(BitInputStream in, ByteBuffer out, int n) {
+		HuffmanTree[] byContext = treesByContext();
+		int prev = 0;
+		for (int i = 0; i < n; i++) {
+			int c = byContext[prev].readCode(in);
+			if (c > 0xFF) {
+				throw new IllegalArgumentException("Unexpected EOF code");
+			}
+			out.put((byte) c);
+			prev = c;
+		}
+	}
+
+	/** @return the tree of each context, so coding takes one lookup */
+	private HuffmanTree[] treesByContext() {
+		HuffmanTree[] byContext = new HuffmanTree[CONTEXTS];
+		for (int ctx = 0; ctx < CONTEXTS; ctx++) {
+			byContext[ctx] = this.trees[this.clusterOf[ctx]];
+		}
+		return byContext;
+	}
+}
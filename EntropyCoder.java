@@ -0,0 +1,38 @@
+import java.nio.ByteBuffer;
+
+/** A static entropy coder for bytes: a code built from a block's histogram,
+ * a header from which a decoder rebuilds the same code, and a way to code
+ * bytes whose number the decoder is told. GrinBlock codes CANONICAL and ANS
+ * blocks through this interface, and reads a coder back from a block's
+ * header by the block's type.
+ */
+public interface EntropyCoder {
+
+	/** @return the number of bits writeHeader writes */
+	int getHeaderBits();
+
+	/** Writes the header a decoder rebuilds this coder from
+	 * @param out the BitOutputStream being written to
+	 */
+	void writeHeader(BitOutputStream out);
+
+	/** @param counts the number of occurrences of each byte value
+	 * @return the number of bits the counted bytes take to code, or
+	 *         Long.MAX_VALUE if one of them cannot be coded
+	 */
+	long getCodedBits(long[] counts);
+
+	/** Codes bytes
+	 * @param data the bytes to code; its position is not moved
+	 * @param out the BitOutputStream being written to
+	 */
+	void encode(ByteBuffer data, BitOutputStream out);
+
+	/** Decodes bytes written by encode, reading nothing after the last
+	 * byte's code
+	 * @param in the BitInputStream being read
+	 * @param out the buffer to put the bytes in
+	 * @param n the number of bytes to decode
+	 */
+	void decode(BitInputStream in, ByteBuffer out, int n);
+}
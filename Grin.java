@@ -1,16 +1,312 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 public class Grin {
 
+	/** Block size used when streaming and none is given */
+	private static final int STREAM_BLOCK_SIZE = 1 << 20;
+
+	private boolean mapped;
+	private boolean adaptive;
+	private int blockType = GrinBlock.CANONICAL;
+	private int blockSize;
+	private int maxCodeLength;
+	private int checkpointInterval;
+	private long rangeOffset;
+	private int rangeLength = -1; // bytes to decode from rangeOffset, or -1 for all
+	private GrinDictionary dictionary;
+	private boolean verbose = true;
+	private ExecutorService executor; // pool shared by the blocks of all files, or null
+
 	public static void main(String[] args) throws IOException {
-		if(args[0].equals("encode")) {
-			GrinEncoder encode = new GrinEncoder();
-			encode.encode(args[1], args[2]);
-		} else if(args[0].equals("decode")) {
-			GrinDecoder decode = new GrinDecoder();
-			decode.decode(args[1], args[2]);
+		Grin grin = new Grin();
+		List<String> files = new ArrayList<String>();
+		boolean batch = args[0].equals("batch");
+		boolean client = args[0].equals("client");
+		String mode = batch || client ? args[1] : args[0];
+		String outputDirectory = null;
+		String socket = null;
+		int port = 0;
+		for (int i = batch || client ? 2 : 1; i < args.length; i++) {
+			if (args[i].equals("--mmap")) {
+				grin.mapped = true;
+			} else if (args[i].equals("--adaptive")) {
+				grin.adaptive = true;
+			} else if (args[i].equals("--interleave")) {
+				grin.blockType = GrinBlock.INTERLEAVED;
+			} else if (args[i].equals("--context")) {
+				grin.blockType = GrinBlock.CONTEXT;
+			} else if (args[i].equals("--ans")) {
+				grin.blockType = GrinBlock.ANS;
+			} else if (args[i].equals("--max-code-length")) {
+				grin.maxCodeLength = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--block-size")) {
+				grin.blockSize = parseIntSize(args[++i]);
+			} else if (args[i].equals("--checkpoint")) {
+				grin.checkpointInterval = parseIntSize(args[++i]);
+			} else if (args[i].equals("--range")) {
+				String[] range = args[++i].split(":", -1);
+				if (range.length != 2) {
+					throw new IllegalArgumentException("--range takes OFFSET:LENGTH, not " + args[i]);
+				}
+				grin.rangeOffset = parseSize(range[0]);
+				grin.rangeLength = parseIntSize(range[1]);
+			} else if (args[i].equals("--dict")) {
+				grin.dictionary = GrinDictionary.load(args[++i]);
+			} else if (args[i].equals("--out")) {
+				outputDirectory = args[++i];
+			} else if (args[i].equals("--socket")) {
+				socket = args[++i];
+			} else if (args[i].equals("--port")) {
+				port = Integer.parseInt(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (grin.blockType != GrinBlock.CANONICAL && grin.blockSize == 0) {
+			grin.blockSize = STREAM_BLOCK_SIZE;
+		}
+		if (grin.checkpointInterval > 0 && (!mode.equals("encode") || client)) {
+			throw new IllegalArgumentException("--checkpoint only applies to encoding files here, not to '" + mode + "'"
+					+ (client ? " on a server" : ""));
+		} else if (grin.checkpointInterval > 0 && (grin.dictionary != null || grin.adaptive || grin.blockSize > 0)) {
+			throw new IllegalArgumentException("--checkpoint cannot be combined with --dict, --adaptive, --block-size, "
+					+ "--interleave, --context or --ans");
+		}
+		if (grin.dictionary != null && (grin.adaptive || grin.blockSize > 0 || grin.maxCodeLength > 0)) {
+			throw new IllegalArgumentException("--dict codes with the dictionary's own tree and cannot be combined with "
+					+ "--adaptive, --block-size, --interleave, --context, --ans or --max-code-length");
+		}
+
+		if (mode.equals("train")) {
+			GrinDictionary trained = GrinDictionary.train(files.subList(1, files.size()),
+					grin.maxCodeLength > 0 ? grin.maxCodeLength : HuffmanTree.MAX_LENGTH);
+			trained.save(files.get(0));
+			System.out.println("Dictionary " + Integer.toHexString(trained.getId()));
+		} else if (mode.equals("archive")) {
+			grin.verbose = false;
+			Map<Path, Path> inputs = new LinkedHashMap<Path, Path>();
+			for (String input : files.subList(1, files.size())) {
+				GrinBatch.expand(input, file -> true, inputs);
+			}
+			/* Every regular file goes in, except the archive itself */
+			Path archive = Paths.get(files.get(0)).toAbsolutePath().normalize();
+			inputs.keySet().removeIf(file -> file.toAbsolutePath().normalize().equals(archive));
+			GrinArchive.write(grin, files.get(0), new ArrayList<Path>(inputs.keySet()));
+		} else if (mode.equals("extract") || mode.equals("list")) {
+			try (FileChannel channel = new FileInputStream(files.get(0)).getChannel()) {
+				GrinArchive archive = GrinArchive.read(channel);
+				if (archive == null) {
+					throw new IllegalArgumentException(files.get(0) + " is not an archive");
+				} else if (mode.equals("list")) {
+					for (int i = 0; i < archive.getCount(); i++) {
+						System.out.println(String.format("%12d %12d  %s", archive.getOriginalSize(i),
+								archive.getCodedSize(i), archive.getName(i)));
+					}
+				} else if (!archive.extract(grin, channel, outputDirectory, files.subList(1, files.size()))) {
+					System.exit(1);
+				}
+			}
+		} else if (mode.equals("serve")) {
+			grin.verbose = false;
+			new GrinServer(grin, GrinServer.address(socket, port)).serve();
+		} else if (!mode.equals("encode") && !mode.equals("decode")) {
+			throw new IllegalArgumentException("Not instructed to 'encode', 'decode', 'train', 'archive', 'extract', 'list', 'serve', 'batch' or 'client'");
+		} else if (client) {
+			client(GrinServer.address(socket, port), mode.equals("encode"), files.get(0), files.get(1));
+		} else if (batch) {
+			grin.verbose = false;
+			GrinBatch run = new GrinBatch(grin, mode.equals("encode"), outputDirectory);
+			if (!run.run(files)) {
+				System.exit(1);
+			}
+		} else if (mode.equals("encode")) {
+			grin.encode(files.get(0), files.get(1));
 		} else {
-			throw new IllegalArgumentException("Not instructed to 'encode' or 'decode'");
+			grin.decode(files.get(0), files.get(1));
+		}
+	}
+
+	/** Encodes a file, or standard input or output for "-", with the options
+	 * given on the command line
+	 * @param infile the file to encode
+	 * @param outfile the file to write
+	 */
+	void encode(String infile, String outfile) throws IOException {
+		boolean streaming = infile.equals("-") || outfile.equals("-");
+		if (streaming && this.checkpointInterval > 0) {
+			throw new IllegalArgumentException("--checkpoint needs files to read and write, not standard input or output");
+		}
+		GrinEncoder encode = newEncoder();
+
+		if (this.dictionary != null && streaming) {
+			try (ReadableByteChannel in = openInput(infile); WritableByteChannel out = openOutput(outfile)) {
+				encode.encodeWithDictionary(in, out);
+			}
+		} else if (this.dictionary != null) {
+			encode.encode(infile, outfile);
+		} else if (this.adaptive && streaming) {
+			try (ReadableByteChannel in = openInput(infile); WritableByteChannel out = openOutput(outfile)) {
+				encode.encodeAdaptive(in, out);
+			}
+		} else if (this.adaptive) {
+			encode.encodeAdaptive(infile, outfile);
+		} else if (streaming) {
+			try (ReadableByteChannel in = openInput(infile); WritableByteChannel out = openOutput(outfile)) {
+				encode.encode(in, out, this.blockSize > 0 ? this.blockSize : STREAM_BLOCK_SIZE);
+			}
+		} else if (this.blockSize > 0) {
+			encode.encode(infile, outfile, this.blockSize);
+		} else {
+			encode.encode(infile, outfile);
+		}
+	}
+
+	/** Decodes a file, or standard input or output for "-"
+	 * @param infile the file to decode
+	 * @param outfile the file to write
+	 */
+	void decode(String infile, String outfile) throws IOException {
+		GrinDecoder decode = newDecoder();
+		if (this.rangeLength >= 0) {
+			ByteBuffer range = decode.decode(infile, this.rangeOffset, this.rangeLength);
+			try (WritableByteChannel out = openOutput(outfile)) {
+				while (range.hasRemaining()) {
+					out.write(range);
+				}
+			}
+		} else if (infile.equals("-") || outfile.equals("-")) {
+			try (ReadableByteChannel in = openInput(infile); WritableByteChannel out = openOutput(outfile)) {
+				decode.decode(in, out);
+			}
+		} else {
+			decode.decode(infile, outfile);
+		}
+	}
+
+	/** @return an encoder set up with the options given on the command line */
+	GrinEncoder newEncoder() {
+		GrinEncoder encode = new GrinEncoder(this.mapped);
+		encode.setVerbose(this.verbose);
+		if (this.maxCodeLength > 0) {
+			encode.setMaxCodeLength(this.maxCodeLength);
+		}
+		encode.setBlockType(this.blockType);
+		encode.setDictionary(this.dictionary);
+		encode.setCheckpointInterval(this.checkpointInterval);
+		encode.setExecutor(this.executor);
+		return encode;
+	}
+
+	/** @return a decoder set up with the options given on the command line */
+	GrinDecoder newDecoder() {
+		GrinDecoder decode = new GrinDecoder(this.mapped);
+		if (this.dictionary != null) {
+			decode.addDictionary(this.dictionary);
+		}
+		decode.setExecutor(this.executor);
+		return decode;
+	}
+
+	/** Makes the coders this creates code blocks on a shared pool
+	 * @param executor the pool, or null for a pool per file
+	 */
+	void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/** Encodes or decodes a file, or standard input or output for "-", on a
+	 * GrinServer
+	 * @param address the server's address
+	 * @param encode true to encode, false to decode
+	 * @param infile the file to read
+	 * @param outfile the file to write
+	 */
+	private static void client(SocketAddress address, boolean encode, String infile, String outfile) throws IOException {
+		ByteBuffer result;
+		try (GrinClient client = new GrinClient(address); ReadableByteChannel in = openInput(infile)) {
+			ByteBuffer data = ByteBuffer.wrap(Channels.newInputStream(in).readAllBytes());
+			result = encode ? client.encode(data) : client.decode(data);
+		}
+		/* Opened only once the server has answered, so a failed request
+		 * leaves no empty output behind */
+		try (WritableByteChannel out = openOutput(outfile)) {
+			while (result.hasRemaining()) {
+				out.write(result);
+			}
+		}
+	}
+
+	/** Opens a file, or standard input for "-", for reading
+	 * @param file the file name
+	 * @return a channel reading the file
+	 */
+	private static ReadableByteChannel openInput(String file) throws IOException {
+		if (file.equals("-")) {
+			return Channels.newChannel(new FileInputStream(FileDescriptor.in));
+		}
+		return new FileInputStream(file).getChannel();
+	}
+
+	/** Opens a file, or standard output for "-", for writing
+	 * @param file the file name
+	 * @return a channel writing the file
+	 */
+	private static WritableByteChannel openOutput(String file) throws IOException {
+		if (file.equals("-")) {
+			return Channels.newChannel(new FileOutputStream(FileDescriptor.out));
+		}
+		return new FileOutputStream(file).getChannel();
+	}
+
+	/** Parses a byte count such as 65536, 64K, 4M or 2G
+	 * @param s the byte count
+	 * @return the number of bytes
+	 * @throws IllegalArgumentException if s is not a byte count
+	 */
+	static long parseSize(String s) {
+		String upper = s.toUpperCase();
+		int shift = 0;
+		if (upper.endsWith("K")) {
+			shift = 10;
+		} else if (upper.endsWith("M")) {
+			shift = 20;
+		} else if (upper.endsWith("G")) {
+			shift = 30;
+		}
+		long n = Long.parseLong(shift == 0 ? upper : upper.substring(0, upper.length() - 1));
+		if (n < 0 || n > Long.MAX_VALUE >> shift) {
+			throw new IllegalArgumentException("Not a byte count: " + s);
+		}
+		return n << shift;
+	}
+
+	/** Parses a byte count that must fit in an int
+	 * @param s the byte count
+	 * @return the number of bytes
+	 * @throws IllegalArgumentException if s is not a byte count or is over
+	 *         Integer.MAX_VALUE
+	 */
+	static int parseIntSize(String s) {
+		long n = parseSize(s);
+		if (n > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(s + " is over the limit of " + Integer.MAX_VALUE + " bytes");
 		}
+		return (int) n;
 	}
 }
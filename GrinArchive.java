@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** A multi-file .grin archive. Each member is coded on its own, exactly as
+ * GrinEncoder codes a single file in memory, and the members are written one
+ * after another. A central directory at the end records every member's name,
+ * original size, where its coded bytes are and which code table it uses: its
+ * own, or a shared dictionary named by id. A 12-byte trailer holds the
+ * directory's offset and the archive magic number, so a reader finds the
+ * directory from the end of the file and any member with one more read.
+ */
+public class GrinArchive {
+
+	/** Magic number of an archive */
+	public static final int MAGIC_NUMBER = 1853;
+
+	/** Bytes in the trailer after the directory */
+	private static final int TRAILER_SIZE = 12;
+
+	/** Bytes in a directory entry besides the name */
+	private static final int ENTRY_SIZE = 30;
+
+	/** Largest file an archive holds. Members are coded and decoded whole in
+	 * memory, in buffers indexed by int, and their coded length is 32 bits,
+	 * so this leaves room for coding that grows the data. */
+	public static final long MAX_MEMBER_SIZE = 1L << 30;
+
+	private List<Member> members = new ArrayList<Member>();
+
+	/** One member's directory entry */
+	private static class Member {
+		private String name;
+		private long originalSize;
+		private long offset;
+		private int length;
+		private int format;     // magic number the member's coding starts with
+		private int dictionary; // id of the dictionary it needs, or 0
+	}
+
+	/** Codes files into an archive, several at once, one per core. At most
+	 * two coded files per core are held in memory waiting to be written.
+	 * The archive is written beside its final name and renamed into place
+	 * once complete, so a failure leaves no partial archive behind.
+	 * @param grin the codec options to code each file with
+	 * @param archive the archive to write
+	 * @param files the files to add, named in the archive by these paths
+	 * @throws IllegalArgumentException if a file is larger than
+	 *         MAX_MEMBER_SIZE or two files would have the same member name,
+	 *         before anything is written
+	 */
+	public static void write(Grin grin, String archive, List<Path> files) throws IOException {
+		List<String> names = new ArrayList<String>();
+		Map<String, Path> fileOf = new HashMap<String, Path>();
+		for (Path file : files) {
+			long size = Files.size(file);
+			if (size > MAX_MEMBER_SIZE) {
+				throw new IllegalArgumentException(file + " is " + size + " bytes, larger than the "
+						+ MAX_MEMBER_SIZE + " an archive member can hold; encode it on its own with --block-size");
+			}
+			String name = nameOf(file);
+			Path previous = fileOf.put(name, file);
+			if (previous != null) {
+				throw new IllegalArgumentException(previous + " and " + file + " would both be stored as " + name);
+			}
+			names.add(name);
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(cores);
+		List<Future<ByteBuffer>> results = new ArrayList<Future<ByteBuffer>>();
+		GrinArchive directory = new GrinArchive();
+
+		Path target = Paths.get(archive);
+		Path partial = Paths.get(archive + ".tmp");
+		BitOutputStream out = new BitOutputStream(partial.toString());
+		try {
+			out.writeBits(MAGIC_NUMBER, 32);
+			long offset = 4;
+			for (int i = 0; i < files.size() + 2 * cores; i++) {
+				if (i < files.size()) {
+					Path file = files.get(i);
+					results.add(pool.submit(() -> encode(grin, file)));
+				}
+				int done = i - 2 * cores;
+				if (done >= 0 && done < files.size()) {
+					ByteBuffer coded = results.get(done).get();
+					results.set(done, null);
+					Member member = new Member();
+					member.name = names.get(done);
+					member.originalSize = Files.size(files.get(done));
+					member.offset = offset;
+					member.length = coded.remaining();
+					member.format = coded.getInt(coded.position());
+					if (member.format == GrinEncoder.DICTIONARY_MAGIC_NUMBER) {
+						member.dictionary = coded.getInt(coded.position() + 4);
+					}
+					directory.members.add(member);
+					out.writeBytes(coded);
+					offset += member.length;
+				}
+			}
+			directory.writeDirectory(offset, out);
+			out.close();
+			Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		} finally {
+			pool.shutdownNow();
+			out.close();
+			Files.deleteIfExists(partial);
+		}
+	}
+
+	/** Codes one file in memory
+	 * @param grin the codec options
+	 * @param file the file
+	 * @return the coded bytes
+	 */
+	private static ByteBuffer encode(Grin grin, Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file)) {
+			ByteBuffer data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			return grin.newEncoder().encode(data);
+		}
+	}
+
+	/** Names a file in the archive: its path relative to where it was found,
+	 * with any root and leading ./ or ../ removed and / between directories,
+	 * so that the member extracts below the output directory
+	 * @param file the file
+	 * @return the member name
+	 */
+	private static String nameOf(Path file) {
+		Path path = file.normalize();
+		if (path.getRoot() != null) {
+			path = path.getRoot().relativize(path);
+		}
+		List<String> parts = new ArrayList<String>();
+		for (Path part : path) {
+			if (!parts.isEmpty() || !part.toString().equals("..")) {
+				parts.add(part.toString());
+			}
+		}
+		String name = String.join("/", parts);
+		resolve(Paths.get("").toAbsolutePath(), name);
+		return name;
+	}
+
+	/** Finds where a member extracts to
+	 * @param base the directory to extract into, absolute and normalised
+	 * @param name the member name
+	 * @return the member's file
+	 * @throws IllegalArgumentException if the name leads outside the directory
+	 */
+	private static Path resolve(Path base, String name) {
+		Path target = base.resolve(name).normalize();
+		if (!target.startsWith(base) || target.equals(base)) {
+			throw new IllegalArgumentException("Member name " + name + " leaves the output directory");
+		}
+		return target;
+	}
+
+	/** Writes the central directory and its trailer
+	 * @param directoryOffset the offset in the archive the directory is
+	 *        written at
+	 * @param out the BitOutputStream being written to
+	 */
+	private void writeDirectory(long directoryOffset, BitOutputStream out) {
+		out.writeBits(this.members.size(), 32);
+		for (Member member : this.members) {
+			byte[] name = member.name.getBytes(StandardCharsets.UTF_8);
+			out.writeBits(name.length, 16);
+			out.writeBytes(ByteBuffer.wrap(name));
+			writeLong(member.originalSize, out);
+			writeLong(member.offset, out);
+			out.writeBits(member.length, 32);
+			out.writeBits(member.format, 32);
+			out.writeBits(member.dictionary, 32);
+		}
+		writeLong(directoryOffset, out);
+		out.writeBits(MAGIC_NUMBER, 32);
+	}
+
+	/** Reads the central directory of an archive
+	 * @param channel the archive
+	 * @return the directory, or null if the file is not an archive
+	 * @throws IOException if the file cannot be read
+	 */
+	public static GrinArchive read(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 4 + 4 + TRAILER_SIZE) {
+			return null;
+		}
+		ByteBuffer trailer = GrinIndex.readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+		long directoryOffset = trailer.getLong();
+		if (trailer.getInt() != MAGIC_NUMBER
+				|| directoryOffset < 4 || directoryOffset > size - TRAILER_SIZE - 4) {
+			return null;
+		}
+
+		ByteBuffer entries = GrinIndex.readFully(channel, directoryOffset, (int) (size - TRAILER_SIZE - directoryOffset));
+		GrinArchive archive = new GrinArchive();
+		int count = entries.getInt();
+		for (int i = 0; i < count; i++) {
+			if (entries.remaining() < 2) {
+				throw new IllegalArgumentException("Archive directory is truncated");
+			}
+			byte[] name = new byte[entries.getShort() & 0xFFFF];
+			if (entries.remaining() < name.length + ENTRY_SIZE - 2) {
+				throw new IllegalArgumentException("Archive directory is truncated");
+			}
+			entries.get(name);
+			Member member = new Member();
+			member.name = new String(name, StandardCharsets.UTF_8);
+			member.originalSize = entries.getLong();
+			member.offset = entries.getLong();
+			member.length = entries.getInt();
+			member.format = entries.getInt();
+			member.dictionary = entries.getInt();
+			if (member.originalSize < 0 || member.originalSize > MAX_MEMBER_SIZE) {
+				throw new IllegalArgumentException("Archive member " + member.name + " has a bad size: " + member.originalSize);
+			}
+			if (member.length < 0 || member.offset < 4 || member.offset + member.length > directoryOffset) {
+				throw new IllegalArgumentException("Archive member " + member.name + " lies outside the archive");
+			}
+			archive.members.add(member);
+		}
+		return archive;
+	}
+
+	/** @return the number of members */
+	public int getCount() {
+		return this.members.size();
+	}
+
+	/** @param i the member number
+	 * @return the member's name */
+	public String getName(int i) {
+		return this.members.get(i).name;
+	}
+
+	/** @param i the member number
+	 * @return the number of bytes the member decodes to */
+	public long getOriginalSize(int i) {
+		return this.members.get(i).originalSize;
+	}
+
+	/** @param i the member number
+	 * @return the number of coded bytes the member takes in the archive */
+	public int getCodedSize(int i) {
+		return this.members.get(i).length;
+	}
+
+	/** @param i the member number
+	 * @return the id of the dictionary the member was coded with, or 0 if it
+	 *         carries its own code table */
+	public int getDictionary(int i) {
+		return this.members.get(i).dictionary;
+	}
+
+	/** @param name a member name
+	 * @return the member's number, or -1 if there is no such member */
+	public int find(String name) {
+		for (int i = 0; i < this.members.size(); i++) {
+			if (this.members.get(i).name.equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Decodes one member with a single read of the archive
+	 * @param channel the archive
+	 * @param i the member number
+	 * @param decoder the decoder, holding any dictionary the member needs
+	 * @return the member's original bytes
+	 * @throws IOException if the archive cannot be read
+	 */
+	public ByteBuffer decode(FileChannel channel, int i, GrinDecoder decoder) throws IOException {
+		Member member = this.members.get(i);
+		return decoder.decode(GrinIndex.readFully(channel, member.offset, member.length));
+	}
+
+	/** Extracts members to files, several at once, one per core. Each is
+	 * decoded straight into its pre-sized, memory-mapped output file.
+	 * @param grin the codec options, holding any dictionary the members need
+	 * @param channel the archive
+	 * @param outputDirectory the directory to extract into, or null for the
+	 *        current directory
+	 * @param names the members to extract, or an empty list for all of them
+	 * @return true iff every member was extracted
+	 * @throws IllegalArgumentException if two members have the same name
+	 */
+	public boolean extract(Grin grin, FileChannel channel, String outputDirectory, List<String> names) throws IOException {
+		Set<String> seen = new HashSet<String>();
+		for (Member member : this.members) {
+			if (!seen.add(member.name)) {
+				throw new IllegalArgumentException("Archive holds more than one member named " + member.name);
+			}
+		}
+		List<Integer> selected = new ArrayList<Integer>();
+		for (String name : names) {
+			int i = find(name);
+			if (i < 0) {
+				throw new IllegalArgumentException("No member " + name);
+			}
+			selected.add(i);
+		}
+		if (names.isEmpty()) {
+			for (int i = 0; i < getCount(); i++) {
+				selected.add(i);
+			}
+		}
+
+		Path base = Paths.get(outputDirectory != null ? outputDirectory : ".").toAbsolutePath().normalize();
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int i : selected) {
+			results.add(pool.submit(() -> {
+				extract(grin, channel, i, base);
+				return null;
+			}));
+		}
+
+		boolean extracted = true;
+		for (int j = 0; j < results.size(); j++) {
+			try {
+				results.get(j).get();
+			} catch (Exception e) {
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				System.err.println(getName(selected.get(j)) + ": " + cause);
+				extracted = false;
+			}
+		}
+		pool.shutdown();
+		return extracted;
+	}
+
+	/** Extracts one member to a file below a directory
+	 * @param grin the codec options
+	 * @param channel the archive
+	 * @param i the member number
+	 * @param base the directory to extract into
+	 */
+	private void extract(Grin grin, FileChannel channel, int i, Path base) throws IOException {
+		Member member = this.members.get(i);
+		Path target = resolve(base, member.name);
+		if (target.getParent() != null) {
+			Files.createDirectories(target.getParent());
+		}
+
+		ByteBuffer coded = GrinIndex.readFully(channel, member.offset, member.length);
+		try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+			file.setLength(member.originalSize);
+			MappedByteBuffer output = file.getChannel().map(MapMode.READ_WRITE, 0, member.originalSize);
+			if (grin.newDecoder().decode(coded, output) != member.originalSize) {
+				throw new IllegalArgumentException("Member decoded to the wrong size");
+			}
+		}
+	}
+
+	/** Writes a 64-bit value as two 32-bit halves
+	 * @param value the value
+	 * @param out the BitOutputStream being written to
+	 */
+	private static void writeLong(long value, BitOutputStream out) {
+		out.writeBits((int) (value >>> 32), 32);
+		out.writeBits((int) value, 32);
+	}
+}
@@ -0,0 +1,236 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Encodes or decodes many files in one process, so that JVM startup and JIT
+ * warm-up are paid once rather than per file. Inputs may be files,
+ * directories (searched recursively), globs such as logs/*.txt or
+ * logs/**.txt, or @manifest files listing one input per line.
+ *
+ * Each file gets its own task, run on a virtual thread where the runtime has
+ * them and on a bounded pool of platform threads otherwise, so tasks waiting
+ * on the disk cost little. Coding itself is CPU bound, so a semaphore lets
+ * only one file per core be coded at a time.
+ */
+public class GrinBatch {
+
+	private Grin grin;
+	private boolean encode;
+	private String outputDirectory;
+	private Semaphore cpu;
+	private AtomicLong bytesIn = new AtomicLong();
+	private AtomicLong bytesOut = new AtomicLong();
+
+	/** Constructor
+	 * @param grin the codec options to code each file with
+	 * @param encode true to encode the files, false to decode them
+	 * @param outputDirectory the directory to write to, or null to write each
+	 *        output next to its input
+	 */
+	public GrinBatch(Grin grin, boolean encode, String outputDirectory) {
+		this.grin = grin;
+		this.encode = encode;
+		this.outputDirectory = outputDirectory;
+		this.cpu = new Semaphore(Runtime.getRuntime().availableProcessors());
+	}
+
+	/** Codes every file the inputs name and prints the totals
+	 * @param inputs files, directories, globs and @manifest files
+	 * @return true iff every file was coded
+	 */
+	public boolean run(List<String> inputs) throws IOException {
+		Map<Path, Path> found = new LinkedHashMap<Path, Path>();
+		for (String input : inputs) {
+			expand(input, file -> file.toString().endsWith(".grin") != this.encode, found);
+		}
+
+		/* Name every output before coding any, so no two tasks share one */
+		List<Path> files = new ArrayList<Path>(found.keySet());
+		List<Path> outputs = new ArrayList<Path>();
+		Map<Path, Path> inputOf = new HashMap<Path, Path>();
+		for (Path file : files) {
+			Path output = outputFor(file, found.get(file));
+			Path previous = inputOf.put(output.toAbsolutePath().normalize(), file);
+			if (previous != null) {
+				throw new IllegalArgumentException(previous + " and " + file + " would both be written to " + output);
+			}
+			outputs.add(output);
+		}
+		for (Path output : outputs) {
+			if (output.getParent() != null) {
+				Files.createDirectories(output.getParent());
+			}
+		}
+
+		/* Blocks of every file share one pool of a thread per core, where
+		 * a pool per file would run up to cores * cores threads */
+		ExecutorService blocks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		this.grin.setExecutor(blocks);
+
+		long start = System.nanoTime();
+		ExecutorService pool = newExecutor();
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int i = 0; i < files.size(); i++) {
+			Path file = files.get(i);
+			Path output = outputs.get(i);
+			results.add(pool.submit(() -> {
+				code(file, output);
+				return null;
+			}));
+		}
+
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (Exception e) {
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				System.err.println(files.get(i) + ": " + cause);
+				failed++;
+			}
+		}
+		pool.shutdown();
+		blocks.shutdown();
+		this.grin.setExecutor(null);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d files, %d failed: %d -> %d bytes in %.2f s, %.1f MB/s",
+				files.size(), failed, this.bytesIn.get(), this.bytesOut.get(), seconds,
+				this.bytesIn.get() / Math.max(seconds, 1e-9) / (1 << 20)));
+		return failed == 0;
+	}
+
+	/** Codes one file, holding a CPU permit while it does
+	 * @param file the file
+	 * @param output the file to write
+	 */
+	private void code(Path file, Path output) throws IOException, InterruptedException {
+		String outfile = output.toString();
+		this.cpu.acquire();
+		try {
+			if (this.encode) {
+				this.grin.encode(file.toString(), outfile);
+			} else {
+				this.grin.decode(file.toString(), outfile);
+			}
+		} finally {
+			this.cpu.release();
+		}
+		this.bytesIn.addAndGet(Files.size(file));
+		this.bytesOut.addAndGet(new File(outfile).length());
+	}
+
+	/** Names the output of a file: encoding adds .grin, decoding removes it
+	 * (or adds .out if it is missing). Outputs go next to their inputs, or
+	 * below the output directory at the input's path relative to the root
+	 * it was found under.
+	 * @param file the input file
+	 * @param relative the input's path relative to its root
+	 * @return the output file
+	 */
+	private Path outputFor(Path file, Path relative) {
+		String name = file.getFileName().toString();
+		if (this.encode) {
+			name += ".grin";
+		} else if (name.endsWith(".grin")) {
+			name = name.substring(0, name.length() - ".grin".length());
+		} else {
+			name += ".out";
+		}
+		Path directory = file.getParent();
+		if (this.outputDirectory != null) {
+			directory = Paths.get(this.outputDirectory);
+			if (relative.getParent() != null) {
+				directory = directory.resolve(relative.getParent());
+			}
+		}
+		return directory == null ? Paths.get(name) : directory.resolve(name);
+	}
+
+	/** Adds the files an input names, each with its path relative to the
+	 * root it was found under: the directory searched, the directory before
+	 * a glob's first wildcard, or for a plain file its own directory
+	 * @param input a file, directory, glob or @manifest file
+	 * @param take which of the files found in a directory to take
+	 * @param files the map from each file to its relative path to add to
+	 */
+	static void expand(String input, Predicate<Path> take, Map<Path, Path> files) throws IOException {
+		if (input.startsWith("@")) {
+			for (String line : Files.readAllLines(Paths.get(input.substring(1)))) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					expand(line, take, files);
+				}
+			}
+		} else if (isGlob(input)) {
+			/* Search from the last directory before the first wildcard */
+			int wildcard = 0;
+			while (!isGlob(input.substring(0, wildcard + 1))) {
+				wildcard++;
+			}
+			int slash = input.lastIndexOf('/', wildcard);
+			Path base = Paths.get(slash < 0 ? "." : input.substring(0, slash + 1));
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+			for (Path file : walk(base)) {
+				Path name = slash < 0 ? base.relativize(file) : file;
+				if (matcher.matches(name)) {
+					files.put(file, base.relativize(file));
+				}
+			}
+		} else if (Files.isDirectory(Paths.get(input))) {
+			Path root = Paths.get(input);
+			for (Path file : walk(root)) {
+				if (take.test(file)) {
+					files.put(file, root.relativize(file));
+				}
+			}
+		} else {
+			Path file = Paths.get(input);
+			files.put(file, file.getFileName());
+		}
+	}
+
+	/** @param input an input
+	 * @return true iff it holds glob wildcards */
+	private static boolean isGlob(String input) {
+		return input.indexOf('*') >= 0 || input.indexOf('?') >= 0
+				|| input.indexOf('[') >= 0 || input.indexOf('{') >= 0;
+	}
+
+	/** @param directory a directory
+	 * @return the regular files below it, in order */
+	private static List<Path> walk(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/** Creates an executor running each task on its own virtual thread, or on
+	 * a pool of platform threads on runtimes without virtual threads
+	 * @return the executor
+	 */
+	static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+		}
+	}
+}
@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/** Throughput benchmarks for the Grin codec. Every benchmark runs a number of
+ * warm-up rounds so the JIT has compiled the hot paths, then reports the best
+ * of the measured rounds.
+ *
+ * Usage: java GrinBenchmark [--size 16M] [--corpus all|uniform|zipf|text|random]
+ *                           [--warmup 3] [--rounds 5]
+ */
+public class GrinBenchmark {
+
+	private static final String[] CORPORA = { "uniform", "zipf", "text", "random" };
+
+	private int warmup = 3;
+	private int rounds = 5;
+	private long sink; // consumes results so the JIT cannot drop the work
+
+	/** A piece of work to time */
+	private interface Task {
+		void run() throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		GrinBenchmark bench = new GrinBenchmark();
+		int size = 16 << 20;
+		String corpus = "all";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--size")) {
+				size = Grin.parseIntSize(args[++i]);
+			} else if (args[i].equals("--corpus")) {
+				corpus = args[++i];
+			} else if (args[i].equals("--warmup")) {
+				bench.warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--rounds")) {
+				bench.rounds = Integer.parseInt(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+
+		bench.benchmarkTreeConstruction();
+		for (String name : CORPORA) {
+			if (corpus.equals("all") || corpus.equals(name)) {
+				byte[] data = generate(name, size, new Random(1846));
+				bench.benchmarkBitIO(name, data);
+				bench.benchmarkEngines(name, data);
+				bench.benchmarkPipeline(name, data);
+			}
+		}
+		System.out.println("(sink " + bench.sink + ")");
+	}
+
+	/** Times tree construction as the alphabet size and skew vary */
+	private void benchmarkTreeConstruction() throws IOException {
+		int[] alphabets = { 2, 16, 64, 256 };
+		double[] skews = { 0.0, 1.0, 2.0 };
+		for (int alphabet : alphabets) {
+			for (double skew : skews) {
+				Map<Short, Integer> m = new HashMap<Short, Integer>();
+				for (int s = 0; s < alphabet; s++) {
+					m.put((short) s, (int) Math.max(1, 1000000 / Math.pow(s + 1, skew)));
+				}
+				int trees = 1000;
+				double seconds = time(() -> {
+					for (int i = 0; i < trees; i++) {
+						sink += new HuffmanTree(new HashMap<Short, Integer>(m)).getRootFrequency();
+					}
+				});
+				report("tree", "alphabet=" + alphabet + ",skew=" + skew,
+						String.format("%.1f us/tree", seconds * 1e6 / trees));
+			}
+		}
+	}
+
+	/** Times raw readBits and writeBits over code-like bit counts
+	 * @param corpus the corpus name
+	 * @param data the corpus
+	 */
+	private void benchmarkBitIO(String corpus, byte[] data) throws IOException {
+		int bits = data.length * 8;
+		report("writeBits", corpus, mbps(data.length, time(() -> {
+			BitOutputStream out = new BitOutputStream(new NullChannel());
+			for (int i = 0; i < data.length; i++) {
+				out.writeBits(data[i], 1 + (i & 7));
+			}
+			out.close();
+		})));
+		report("readBits", corpus, mbps(data.length, time(() -> {
+			BitInputStream in = new BitInputStream(ByteBuffer.wrap(data));
+			long total = 0;
+			for (int read = 0, n = 1; read + n <= bits; read += n, n = 1 + (n & 7)) {
+				total += in.readBits(n);
+			}
+			sink += total;
+		})));
+	}
+
+	/** Times in-memory encoding and decoding with each coding engine
+	 * @param corpus the corpus name
+	 * @param data the corpus
+	 */
+	private void benchmarkEngines(String corpus, byte[] data) throws IOException {
+		ByteBuffer input = ByteBuffer.wrap(data);
+		HuffmanTree tree = new HuffmanTree(Histogram.toFrequencyMap(Histogram.count(input)));
+		ByteBuffer coded = capture(out -> tree.encode(new BitInputStream(input), out));
+		report("huffman.encode", corpus, mbps(data.length, time(() ->
+				tree.encode(new BitInputStream(input), new BitOutputStream(new NullChannel())))));
+		report("huffman.decode", corpus, mbps(data.length, time(() ->
+				tree.decode(new BitInputStream(coded), new BitOutputStream(new NullChannel())))));
+
+		ByteBuffer adaptive = capture(out -> new AdaptiveHuffmanTree().encode(new BitInputStream(input), out));
+		report("adaptive.encode", corpus, mbps(data.length, time(() ->
+				new AdaptiveHuffmanTree().encode(new BitInputStream(input), new BitOutputStream(new NullChannel())))));
+		report("adaptive.decode", corpus, mbps(data.length, time(() ->
+				new AdaptiveHuffmanTree().decode(new BitInputStream(adaptive), new BitOutputStream(new NullChannel())))));
+
+		GrinBlock block = GrinBlock.encode(input);
+		report("block.encode", corpus, mbps(data.length, time(() -> sink += GrinBlock.encode(input).getFrameLength())));
+		report("block.decode", corpus, mbps(data.length, time(() -> sink += block.decode().remaining())));
+
+		GrinBlock interleaved = GrinBlock.encode(input, GrinBlock.INTERLEAVED, HuffmanTree.MAX_LENGTH);
+		report("interleaved.encode", corpus, mbps(data.length, time(() ->
+				sink += GrinBlock.encode(input, GrinBlock.INTERLEAVED, HuffmanTree.MAX_LENGTH).getFrameLength())));
+		report("interleaved.decode", corpus, mbps(data.length, time(() -> sink += interleaved.decode().remaining())));
+
+		GrinBlock context = GrinBlock.encode(input, GrinBlock.CONTEXT, HuffmanTree.MAX_LENGTH);
+		report("context.encode", corpus, mbps(data.length, time(() ->
+				sink += GrinBlock.encode(input, GrinBlock.CONTEXT, HuffmanTree.MAX_LENGTH).getFrameLength()))
+				+ ratio(data.length, context.getFrameLength()));
+		report("context.decode", corpus, mbps(data.length, time(() -> sink += context.decode().remaining())));
+
+		GrinBlock ans = GrinBlock.encode(input, GrinBlock.ANS, HuffmanTree.MAX_LENGTH);
+		report("ans.encode", corpus, mbps(data.length, time(() ->
+				sink += GrinBlock.encode(input, GrinBlock.ANS, HuffmanTree.MAX_LENGTH).getFrameLength()))
+				+ ratio(data.length, ans.getFrameLength()));
+		report("ans.decode", corpus, mbps(data.length, time(() -> sink += ans.decode().remaining())));
+
+		ByteBuffer grin = new GrinEncoder().encode(input);
+		report("grin.encode.memory", corpus, mbps(data.length, time(() ->
+				sink += new GrinEncoder().encode(input).remaining())));
+		report("grin.decode.memory", corpus, mbps(data.length, time(() ->
+				sink += new GrinDecoder().decode(grin).remaining())));
+	}
+
+	/** Times whole GrinEncoder and GrinDecoder runs on files
+	 * @param corpus the corpus name
+	 * @param data the corpus
+	 */
+	private void benchmarkPipeline(String corpus, byte[] data) throws IOException {
+		File in = File.createTempFile("grin-bench", ".in");
+		File coded = File.createTempFile("grin-bench", ".grin");
+		File out = File.createTempFile("grin-bench", ".out");
+		try {
+			Files.write(in.toPath(), data);
+			GrinEncoder encoder = new GrinEncoder();
+			encoder.setVerbose(false);
+			double encode = time(() -> encoder.encode(in.getPath(), coded.getPath()));
+			report("grin.encode", corpus, mbps(data.length, encode) + ratio(data.length, coded.length()));
+			report("grin.decode", corpus, mbps(data.length, time(() ->
+					new GrinDecoder().decode(coded.getPath(), out.getPath()))));
+
+			report("grin.encode.blocks", corpus, mbps(data.length, time(() ->
+					new GrinEncoder().encode(in.getPath(), coded.getPath(), 1 << 20))) + ratio(data.length, coded.length()));
+			report("grin.decode.blocks", corpus, mbps(data.length, time(() ->
+					new GrinDecoder().decode(coded.getPath(), out.getPath()))));
+		} finally {
+			in.delete();
+			coded.delete();
+			out.delete();
+		}
+	}
+
+	/** Runs a task warmup + rounds times
+	 * @param task the task
+	 * @return the shortest measured time in seconds
+	 */
+	private double time(Task task) throws IOException {
+		for (int i = 0; i < this.warmup; i++) {
+			task.run();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < this.rounds; i++) {
+			long start = System.nanoTime();
+			task.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e9;
+	}
+
+	/** A coder writing to a BitOutputStream */
+	private interface Coder {
+		void code(BitOutputStream out);
+	}
+
+	/** Runs a coder into memory
+	 * @param coder the coder
+	 * @return the bytes it wrote
+	 */
+	private static ByteBuffer capture(Coder coder) {
+		ByteBufferChannel bytes = new ByteBufferChannel(1 << 16);
+		BitOutputStream out = new BitOutputStream(bytes);
+		coder.code(out);
+		out.close();
+		return bytes.getBuffer();
+	}
+
+	/** A channel that discards everything written to it */
+	private static class NullChannel implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** Generates a corpus
+	 * @param name uniform (the 16 letters a to p, equally likely, so 4 bits
+	 *        a byte), zipf (byte ranks follow a Zipf law), text (words drawn
+	 *        from a small vocabulary) or random (all 256 byte values equally
+	 *        likely, so incompressible)
+	 * @param size the number of bytes
+	 * @param random the source of randomness
+	 * @return the corpus
+	 */
+	static byte[] generate(String name, int size, Random random) {
+		byte[] data = new byte[size];
+		if (name.equals("uniform")) {
+			for (int i = 0; i < size; i++) {
+				data[i] = (byte) ('a' + random.nextInt(16));
+			}
+		} else if (name.equals("zipf")) {
+			double[] cumulative = new double[256];
+			double sum = 0;
+			for (int s = 0; s < 256; s++) {
+				sum += 1.0 / (s + 1);
+				cumulative[s] = sum;
+			}
+			for (int i = 0; i < size; i++) {
+				double r = random.nextDouble() * sum;
+				int s = 0;
+				while (cumulative[s] < r) {
+					s++;
+				}
+				data[i] = (byte) s;
+			}
+		} else if (name.equals("text")) {
+			String[] words = { "the", "grin", "of", "a", "huffman", "tree", "and", "bits",
+					"to", "encode", "decode", "stream", "error", "INFO", "2026-10-18", "\n" };
+			int i = 0;
+			while (i < size) {
+				byte[] word = (words[(int) Math.min(words.length - 1, random.nextGaussian() * 4 + 8)
+						& 15] + " ").getBytes();
+				for (int j = 0; j < word.length && i < size; j++) {
+					data[i++] = word[j];
+				}
+			}
+		} else if (name.equals("random")) {
+			random.nextBytes(data);
+		} else {
+			throw new IllegalArgumentException("Unknown corpus: " + name);
+		}
+		return data;
+	}
+
+	private static void report(String benchmark, String corpus, String result) {
+		System.out.println(String.format("%-20s %-28s %s", benchmark, corpus, result));
+	}
+
+	private static String mbps(long bytes, double seconds) {
+		return String.format("%8.1f MB/s", bytes / seconds / (1 << 20));
+	}
+
+	private static String ratio(long original, long coded) {
+		return String.format("  (ratio %.3f)", original == 0 ? 1.0 : (double) coded / original);
+	}
+}
@@ -0,0 +1,351 @@
+import java.nio.ByteBuffer;
+
+/** An independently coded block of a blocked .grin file. On disk a block is
+ * framed as an 8-bit type, its 32-bit original length and its 32-bit payload
+ * length, followed by the payload bytes. A frame of type END closes the list.
+ */
+public class GrinBlock {
+
+	/** Payload is a code length header followed by canonical Huffman codes
+	 * and the EOF code */
+	public static final int CANONICAL = 1;
+
+	/** Payload is the original bytes, stored because coding would not pay off */
+	public static final int STORED = 2;
+
+	/** Payload is a code length header, padded to a byte, then the 32-bit
+	 * byte lengths of the first three of HuffmanTree.STREAMS interleaved
+	 * code streams, then the streams themselves */
+	public static final int INTERLEAVED = 3;
+
+	/** Payload is a ContextModel header followed by order-1 context codes */
+	public static final int CONTEXT = 4;
+
+	/** Payload is an AnsCoder header followed by the coder's final state
+	 * and its tANS codes */
+	public static final int ANS = 5;
+
+	/** Marks the end of the blocks */
+	public static final int END = 0xFF;
+
+	/** Coding must be expected to save at least 1/MIN_SAVING of a block */
+	private static final int MIN_SAVING = 64;
+
+	private int type;
+	private int originalLength;
+	private ByteBuffer payload;
+	private long codedBits;   // code bits in the payload, when just encoded
+	private long optimalBits; // code bits with no code length limit
+
+	/** Constructor
+	 * @param type the way the payload is coded
+	 * @param originalLength the number of bytes the block decodes to
+	 * @param payload the coded bytes
+	 */
+	public GrinBlock(int type, int originalLength, ByteBuffer payload) {
+		this.type = type;
+		this.originalLength = originalLength;
+		this.payload = payload;
+	}
+
+	/** Codes a block of data with its own HuffmanTree
+	 * @param data the bytes to code; its position is not moved
+	 * @return the coded block
+	 */
+	public static GrinBlock encode(ByteBuffer data) {
+		return encode(data, HuffmanTree.MAX_LENGTH);
+	}
+
+	/** Codes a block of data with its own length-limited HuffmanTree
+	 * @param data the bytes to code; its position is not moved
+	 * @param maxCodeLength the longest code allowed
+	 * @return the coded block
+	 */
+	public static GrinBlock encode(ByteBuffer data, int maxCodeLength) {
+		return encode(data, CANONICAL, maxCodeLength);
+	}
+
+	/** Codes a block of data with its own length-limited HuffmanTree, or
+	 * stores it as it is if coding would not make it smaller. A stored
+	 * block's payload shares the data's bytes.
+	 * @param data the bytes to code; its position is not moved
+	 * @param type the way to code the block, CANONICAL, INTERLEAVED, CONTEXT
+	 *        or ANS; a CONTEXT block whose contexts all fall in one cluster,
+	 *        or an ANS block that canonical codes would code smaller, is
+	 *        coded as CANONICAL instead
+	 * @param maxCodeLength the longest code allowed
+	 * @return the coded block
+	 */
+	public static GrinBlock encode(ByteBuffer data, int type, int maxCodeLength) {
+		if (type != CANONICAL && type != INTERLEAVED && type != CONTEXT && type != ANS) {
+			throw new IllegalArgumentException("Cannot code blocks of type " + type);
+		}
+		long[] counts = Histogram.count(data);
+		if (!worthCoding(counts)) {
+			return new GrinBlock(STORED, data.remaining(), data.slice());
+		}
+		if (type == CONTEXT) {
+			ContextModel model = ContextModel.build(data, maxCodeLength);
+			if (model.getClusters() > 1) {
+				return encodeContext(model, data);
+			}
+			type = CANONICAL;
+		}
+		HuffmanTree tree = new HuffmanTree(Histogram.toFrequencies(counts), maxCodeLength);
+		if (type == ANS) {
+			AnsCoder coder = new AnsCoder(counts);
+			if (coder.getHeaderBits() + coder.getCodedBits(counts)
+					< tree.getHeaderBits() + tree.getCodedBits(counts)) {
+				return encode(ANS, coder, counts, data);
+			}
+			type = CANONICAL;
+		}
+		if (type == CANONICAL) {
+			GrinBlock block = encode(CANONICAL, tree, counts, data);
+			block.optimalBits = block.type == CANONICAL ? tree.getOptimalBits() : 0;
+			return block;
+		}
+		if (!worthCoding(tree)) {
+			return new GrinBlock(STORED, data.remaining(), data.slice());
+		}
+
+		ByteBufferChannel bytes = new ByteBufferChannel(data.remaining() / 2 + 64);
+		BitOutputStream out = new BitOutputStream(bytes);
+		tree.writeHeader(out);
+		writeInterleaved(tree, data, out);
+		out.close();
+
+		GrinBlock block = new GrinBlock(type, data.remaining(), bytes.getBuffer());
+		block.codedBits = tree.getCodedBits();
+		block.optimalBits = tree.getOptimalBits();
+		return block;
+	}
+
+	/** Codes data with an EntropyCoder, or stores it as it is if that would
+	 * not make it smaller
+	 * @param type the block type the coder's payload is read back as
+	 * @param coder the coder built for the data
+	 * @param counts the number of occurrences of each byte value in the data
+	 * @param data the bytes to code; its position is not moved
+	 * @return the coded block
+	 */
+	private static GrinBlock encode(int type, EntropyCoder coder, long[] counts, ByteBuffer data) {
+		long codedBits = coder.getCodedBits(counts);
+		if (coder.getHeaderBits() + codedBits >= 8L * data.remaining()) {
+			return new GrinBlock(STORED, data.remaining(), data.slice());
+		}
+		ByteBufferChannel bytes = new ByteBufferChannel(data.remaining() / 2 + 64);
+		BitOutputStream out = new BitOutputStream(bytes);
+		coder.writeHeader(out);
+		coder.encode(data, out);
+		out.close();
+
+		GrinBlock block = new GrinBlock(type, data.remaining(), bytes.getBuffer());
+		block.codedBits = codedBits;
+		block.optimalBits = codedBits;
+		return block;
+	}
+
+	/** Codes data with an order-1 context model, or stores it as it is if
+	 * that would not make it smaller
+	 * @param model the model built for the data
+	 * @param data the bytes to code; its position is not moved
+	 * @return the coded block
+	 */
+	private static GrinBlock encodeContext(ContextModel model, ByteBuffer data) {
+		if (model.getHeaderBits() + model.getCodedBits() >= 8L * data.remaining()) {
+			return new GrinBlock(STORED, data.remaining(), data.slice());
+		}
+		ByteBufferChannel bytes = new ByteBufferChannel(data.remaining() / 2 + 64);
+		BitOutputStream out = new BitOutputStream(bytes);
+		model.writeHeader(out);
+		model.encode(data, out);
+		out.close();
+
+		GrinBlock block = new GrinBlock(CONTEXT, data.remaining(), bytes.getBuffer());
+		block.codedBits = model.getCodedBits();
+		block.optimalBits = model.getOptimalBits();
+		return block;
+	}
+
+	/** Codes data into HuffmanTree.STREAMS separate streams and writes them
+	 * after the jump table giving their lengths
+	 * @param tree the tree to code with, whose header has been written
+	 * @param data the bytes to code; its position is not moved
+	 * @param out the BitOutputStream being written to
+	 */
+	private static void writeInterleaved(HuffmanTree tree, ByteBuffer data, BitOutputStream out) {
+		ByteBufferChannel[] streams = new ByteBufferChannel[HuffmanTree.STREAMS];
+		BitOutputStream[] outs = new BitOutputStream[HuffmanTree.STREAMS];
+		for (int s = 0; s < HuffmanTree.STREAMS; s++) {
+			streams[s] = new ByteBufferChannel(data.remaining() / (2 * HuffmanTree.STREAMS) + 64);
+			outs[s] = new BitOutputStream(streams[s]);
+		}
+		tree.encodeInterleaved(data, outs);
+
+		out.flush();
+		for (int s = 0; s < HuffmanTree.STREAMS; s++) {
+			outs[s].close();
+			if (s < HuffmanTree.STREAMS - 1) {
+				out.writeBits(streams[s].getBuffer().remaining(), 32);
+			}
+		}
+		for (int s = 0; s < HuffmanTree.STREAMS; s++) {
+			out.writeBytes(streams[s].getBuffer());
+		}
+	}
+
+	/** Decodes the payload of an INTERLEAVED block, splitting it into its
+	 * streams with the jump table and decoding them together
+	 * @return a buffer holding the original bytes
+	 */
+	private ByteBuffer decodeInterleaved() {
+		BitInputStream in = new BitInputStream(this.payload);
+		HuffmanTree tree = HuffmanTree.readHeader(in);
+		int position = (tree.getHeaderBits() + 7) / 8;
+		in.skipBits(position * 8L - tree.getHeaderBits());
+
+		BitInputStream[] streams = new BitInputStream[HuffmanTree.STREAMS];
+		int start = this.payload.position() + position + 4 * (HuffmanTree.STREAMS - 1);
+		for (int s = 0; s < HuffmanTree.STREAMS; s++) {
+			int length = s < HuffmanTree.STREAMS - 1 ? in.readBits(32)
+					: this.payload.limit() - start;
+			if (length < 0 || length > this.payload.limit() - start) {
+				throw new IllegalArgumentException("Bad interleaved stream length: " + length);
+			}
+			streams[s] = new BitInputStream(this.payload.slice(start, length));
+			start += length;
+		}
+
+		ByteBuffer result = ByteBuffer.allocate(this.originalLength);
+		tree.decodeInterleaved(streams, result, this.originalLength);
+		result.flip();
+		return result;
+	}
+
+	/** Decides from a histogram alone whether coding is worth trying, which
+	 * spares building a tree for data that is already compressed. Coding is
+	 * skipped when even the entropy of the bytes would save less than
+	 * 1/MIN_SAVING of their size.
+	 * @param counts the number of occurrences of each byte value
+	 * @return true iff the bytes might be worth coding
+	 */
+	public static boolean worthCoding(long[] counts) {
+		double bits = 8.0 * Histogram.total(counts);
+		return Histogram.entropyBits(counts) < bits - bits / MIN_SAVING;
+	}
+
+	/** @param tree a tree built from the frequencies of some bytes
+	 * @return true iff the tree's header and codes take fewer bits than
+	 *         storing the bytes
+	 */
+	public static boolean worthCoding(HuffmanTree tree) {
+		return tree.getHeaderBits() + tree.getCodedBits() < 8L * tree.getRootFrequency();
+	}
+
+	/** Decodes this block
+	 * @return a buffer holding the original bytes
+	 */
+	public ByteBuffer decode() {
+		if (this.type == STORED) {
+			if (this.payload.remaining() != this.originalLength) {
+				throw new IllegalArgumentException("Stored block holds " + this.payload.remaining()
+						+ " bytes, expected " + this.originalLength);
+			}
+			return this.payload.duplicate();
+		} else if (this.type == INTERLEAVED) {
+			return decodeInterleaved();
+		}
+
+		BitInputStream in = new BitInputStream(this.payload);
+		ByteBuffer result = ByteBuffer.allocate(this.originalLength);
+		if (this.type == CONTEXT) {
+			ContextModel.readHeader(in).decode(in, result, this.originalLength);
+		} else {
+			readCoder(this.type, in).decode(in, result, this.originalLength);
+		}
+		result.flip();
+		return result;
+	}
+
+	/** Reads the header of a block coded through an EntropyCoder
+	 * @param type the block type, CANONICAL or ANS
+	 * @param in the BitInputStream being read, at the start of the payload
+	 * @return the coder the header describes
+	 */
+	private static EntropyCoder readCoder(int type, BitInputStream in) {
+		if (type == CANONICAL) {
+			return HuffmanTree.readHeader(in);
+		} else if (type == ANS) {
+			return AnsCoder.readHeader(in);
+		}
+		throw new IllegalArgumentException("Unknown block type: " + type);
+	}
+
+	/** Writes the frame of this block
+	 * @param out the BitOutputStream being written to
+	 */
+	public void write(BitOutputStream out) {
+		out.writeBits(this.type, 8);
+		out.writeBits(this.originalLength, 32);
+		out.writeBits(this.payload.remaining(), 32);
+		out.writeBytes(this.payload.duplicate());
+	}
+
+	/** Writes the frame that ends a list of blocks
+	 * @param out the BitOutputStream being written to
+	 */
+	public static void writeEnd(BitOutputStream out) {
+		out.writeBits(END, 8);
+	}
+
+	/** Reads the next block frame
+	 * @param in the BitInputStream being read
+	 * @return the block, or null at the end of the blocks
+	 */
+	public static GrinBlock read(BitInputStream in) {
+		int type = in.readBits(8);
+		if (type == END) {
+			return null;
+		} else if (type == -1) {
+			throw new IllegalArgumentException("Input ended before the last block");
+		}
+		int originalLength = in.readBits(32);
+		int length = in.readBits(32);
+		ByteBuffer payload = in.readBytes(length);
+		if (payload.remaining() != length) {
+			throw new IllegalArgumentException("Input ended inside a block");
+		}
+		return new GrinBlock(type, originalLength, payload);
+	}
+
+	/** @return the way the payload is coded */
+	public int getType() {
+		return this.type;
+	}
+
+	/** @return the coded bytes */
+	public ByteBuffer getPayload() {
+		return this.payload.duplicate();
+	}
+
+	/** @return the number of bytes the block decodes to */
+	public int getOriginalLength() {
+		return this.originalLength;
+	}
+
+	/** @return the number of bytes the block's frame takes up */
+	public int getFrameLength() {
+		return 9 + this.payload.remaining();
+	}
+
+	/** @return the code bits in the payload of a block just encoded */
+	public long getCodedBits() {
+		return this.codedBits;
+	}
+
+	/** @return the code bits the payload would hold with no length limit */
+	public long getOptimalBits() {
+		return this.optimalBits;
+	}
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/** The seek checkpoints at the end of a checkpointed .grin file. Every
+ * interval bytes of the original file, a checkpoint records the bit offset in
+ * the .grin file where the code of that byte starts, so a reader can start
+ * decoding there instead of at the beginning. The table is followed by a
+ * 12-byte trailer holding the table's own offset and the checkpointed magic
+ * number, so a reader can find it from the end of the file.
+ */
+public class GrinCheckpoints {
+
+	/** Bytes in the trailer after the table */
+	private static final int TRAILER_SIZE = 12;
+
+	private int interval;
+	private int count;
+	private long[] bitOffsets;
+
+	/** Constructs an empty table
+	 * @param interval the number of original bytes between checkpoints
+	 */
+	public GrinCheckpoints(int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Checkpoint interval must be positive: " + interval);
+		}
+		this.interval = interval;
+		this.bitOffsets = new long[16];
+	}
+
+	/** Records the next checkpoint
+	 * @param bitOffset the bit offset in the .grin file where the code of the
+	 *        checkpoint's byte starts
+	 */
+	public void add(long bitOffset) {
+		if (this.count == this.bitOffsets.length) {
+			this.bitOffsets = Arrays.copyOf(this.bitOffsets, 2 * this.count);
+		}
+		this.bitOffsets[this.count++] = bitOffset;
+	}
+
+	/** Writes the table and its trailer
+	 * @param tableOffset the offset in the .grin file the table is written at
+	 * @param out the BitOutputStream being written to
+	 */
+	public void write(long tableOffset, BitOutputStream out) {
+		out.writeBits(this.interval, 32);
+		out.writeBits(this.count, 32);
+		for (int i = 0; i < this.count; i++) {
+			writeLong(this.bitOffsets[i], out);
+		}
+		writeLong(tableOffset, out);
+		out.writeBits(GrinEncoder.CHECKPOINTED_MAGIC_NUMBER, 32);
+	}
+
+	/** Reads the checkpoints of a checkpointed .grin file
+	 * @param channel the .grin file
+	 * @return the checkpoints, or null if the file has no checkpoint trailer
+	 * @throws IOException if the file cannot be read
+	 */
+	public static GrinCheckpoints read(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 4 + 8 + TRAILER_SIZE) {
+			return null;
+		}
+		ByteBuffer trailer = GrinIndex.readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+		long tableOffset = trailer.getLong();
+		if (trailer.getInt() != GrinEncoder.CHECKPOINTED_MAGIC_NUMBER
+				|| tableOffset < 4 || tableOffset > size - TRAILER_SIZE - 8) {
+			return null;
+		}
+
+		ByteBuffer table = GrinIndex.readFully(channel, tableOffset, (int) (size - TRAILER_SIZE - tableOffset));
+		int interval = table.getInt();
+		int count = table.getInt();
+		if (interval <= 0 || table.remaining() != (long) count * Long.BYTES) {
+			return null;
+		}
+		GrinCheckpoints checkpoints = new GrinCheckpoints(interval);
+		checkpoints.count = count;
+		checkpoints.bitOffsets = new long[count];
+		for (int i = 0; i < count; i++) {
+			checkpoints.bitOffsets[i] = table.getLong();
+			if (checkpoints.bitOffsets[i] < 0 || checkpoints.bitOffsets[i] > 8 * tableOffset) {
+				return null;
+			}
+		}
+		return checkpoints;
+	}
+
+	/** @return the number of original bytes between checkpoints */
+	public int getInterval() {
+		return this.interval;
+	}
+
+	/** @return the number of checkpoints */
+	public int getCount() {
+		return this.count;
+	}
+
+	/** @param i the checkpoint number
+	 * @return the bit offset in the .grin file where the code of original byte
+	 *         i * interval starts
+	 */
+	public long getBitOffset(int i) {
+		return this.bitOffsets[i];
+	}
+
+	/** Writes a 64-bit value as two 32-bit halves
+	 * @param value the value
+	 * @param out the BitOutputStream being written to
+	 */
+	private static void writeLong(long value, BitOutputStream out) {
+		out.writeBits((int) (value >>> 32), 32);
+		out.writeBits((int) value, 32);
+	}
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/** A thin client for a GrinServer. One connection is kept open and reused
+ * for every request; requests on one client are sent one at a time.
+ */
+public class GrinClient implements AutoCloseable {
+
+	private SocketChannel channel;
+
+	/** Connects to a server
+	 * @param address the server's address, as from GrinServer.address
+	 * @throws IOException if the server cannot be reached
+	 */
+	public GrinClient(SocketAddress address) throws IOException {
+		this.channel = SocketChannel.open(address);
+	}
+
+	/** Encodes bytes on the server
+	 * @param data the bytes to encode; its position is moved to its limit
+	 * @return the .grin bytes
+	 * @throws IOException if the server fails to encode them
+	 */
+	public ByteBuffer encode(ByteBuffer data) throws IOException {
+		return request(GrinServer.ENCODE, data);
+	}
+
+	/** Decodes .grin bytes on the server
+	 * @param data the .grin bytes; its position is moved to its limit
+	 * @return the original bytes
+	 * @throws IOException if the server fails to decode them
+	 */
+	public ByteBuffer decode(ByteBuffer data) throws IOException {
+		return request(GrinServer.DECODE, data);
+	}
+
+	/** Sends a request and waits for its response
+	 * @param op the operation
+	 * @param data the request data
+	 * @return the response data
+	 */
+	private synchronized ByteBuffer request(int op, ByteBuffer data) throws IOException {
+		if (data.remaining() > GrinServer.MAX_FRAME_SIZE) {
+			throw new IOException("Request of " + data.remaining() + " bytes is larger than the server's limit of "
+					+ GrinServer.MAX_FRAME_SIZE);
+		}
+		GrinServer.write(this.channel, op, data);
+		ByteBuffer header = GrinServer.readFully(this.channel, GrinServer.HEADER_SIZE);
+		if (header == null) {
+			throw new IOException("Server closed the connection");
+		}
+		int status = header.get();
+		ByteBuffer result = GrinServer.readFully(this.channel, header.getInt());
+		if (result == null) {
+			throw new IOException("Server closed the connection");
+		}
+		if (status != GrinServer.OK) {
+			throw new IOException(StandardCharsets.UTF_8.decode(result).toString());
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
@@ -1,34 +1,399 @@
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GrinDecoder {
 
+	private boolean mapped;
+	private Map<Integer, GrinDictionary> dictionaries = new HashMap<Integer, GrinDictionary>();
+	private ExecutorService executor; // shared pool for blocks, or null for one per decode
+
+	/** Constructs a GrinDecoder that reads its input through a buffer
+	 */
+	public GrinDecoder() {
+		this(false);
+	}
+
+	/** Constructs a GrinDecoder
+	 * @param mapped true iff the input file should be memory-mapped
+	 */
+	public GrinDecoder(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/** Makes a dictionary available to decode the files coded with it
+	 * @param dictionary the dictionary
+	 */
+	public void addDictionary(GrinDictionary dictionary) {
+		this.dictionaries.put(dictionary.getId(), dictionary);
+	}
+
+	/** Decodes the blocks of indexed files on a pool shared with other work,
+	 * such as other files of a batch, instead of a pool of their own per
+	 * decode. The pool is left running.
+	 * @param executor the pool, or null for a pool per decode
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
 	public void decode(String infile, String outfile) throws IOException {
-		BitInputStream in = new BitInputStream(infile);
-		BitOutputStream out = new BitOutputStream(outfile, true);
-		Map<Short, Integer> fmap = new HashMap<Short, Integer>();
+		BitInputStream in = new BitInputStream(infile, this.mapped);
+		int magicNumber = in.readBits(32);
 
-		int magicNumber = 0;
-		
-		for(int i = 0; i < 8; i ++) {
-			magicNumber += in.readBits(32);
+		if(magicNumber == GrinEncoder.BLOCKED_MAGIC_NUMBER) {
+			try (FileChannel channel = new FileInputStream(infile).getChannel()) {
+				GrinIndex index = GrinIndex.read(channel);
+				if (index != null) {
+					in.close();
+					decode(channel, index, outfile);
+					return;
+				}
+			}
 		}
-		System.out.println(magicNumber);
-		
-		if(magicNumber != 1846) {
-			throw new IllegalArgumentException("Not appropriate magic number");
-		} else {
-			int leafCount = in.readBits(32);
 
-			for(int i = 0; i < leafCount; i++) {
-				fmap.put((short)in.readBits(16), in.readBits(32));
+		BitOutputStream out = new BitOutputStream(outfile);
+		try {
+			decode(magicNumber, in, out);
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/** Decodes a .grin stream from start to end, such as a pipe
+	 * @param input the channel to decode
+	 * @param output the channel to write
+	 */
+	public void decode(ReadableByteChannel input, WritableByteChannel output) {
+		BitInputStream in = new BitInputStream(input);
+		BitOutputStream out = new BitOutputStream(output);
+		decode(in.readBits(32), in, out);
+		out.flush();
+	}
+
+	/** Decodes .grin bytes in memory, in any of the formats GrinEncoder writes
+	 * @param data the .grin bytes, which may be a direct buffer; its position
+	 *        is not moved
+	 * @return a buffer holding the original bytes
+	 */
+	public ByteBuffer decode(ByteBuffer data) {
+		ByteBufferChannel output = new ByteBufferChannel(2 * data.remaining());
+		decode(data, output);
+		return output.getBuffer();
+	}
+
+	/** Decodes .grin bytes in memory into a buffer supplied by the caller
+	 * @param data the .grin bytes, which may be a direct buffer; its position
+	 *        is not moved
+	 * @param dst the buffer to write the original bytes to, from its
+	 *        position, which is moved past them
+	 * @return the number of bytes written
+	 * @throws java.nio.BufferOverflowException if dst has too little room
+	 */
+	public int decode(ByteBuffer data, ByteBuffer dst) {
+		int start = dst.position();
+		decode(data, new ByteBufferChannel(dst));
+		return dst.position() - start;
+	}
+
+	/** Decodes .grin bytes in memory
+	 * @param data the .grin bytes
+	 * @return the original bytes
+	 */
+	public byte[] decode(byte[] data) {
+		ByteBuffer decoded = decode(ByteBuffer.wrap(data));
+		byte[] bytes = new byte[decoded.remaining()];
+		decoded.get(bytes);
+		return bytes;
+	}
+
+	/** Decodes .grin bytes in memory
+	 * @param data the .grin bytes; its position is not moved
+	 * @param output the channel to write
+	 */
+	private void decode(ByteBuffer data, WritableByteChannel output) {
+		BitInputStream in = new BitInputStream(data);
+		BitOutputStream out = new BitOutputStream(output);
+		decode(in.readBits(32), in, out);
+		out.flush();
+	}
+
+	/** Decodes the bytes [offset, offset + length) of the file a .grin file
+	 * holds. Stored files are read in place, checkpointed files are decoded
+	 * from the nearest checkpoint at or before offset, and blocked files with
+	 * an index decode only the blocks the range overlaps. Any other file is
+	 * decoded from the start until the range is full.
+	 * @param infile the .grin file
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 * @return a buffer holding the range, which holds fewer than length bytes
+	 *         if the range runs past the end of the file
+	 */
+	public ByteBuffer decode(String infile, long offset, int length) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Range must not be negative");
+		}
+		try (FileChannel channel = new FileInputStream(infile).getChannel()) {
+			int magicNumber = GrinIndex.readFully(channel, 0, 4).getInt();
+			if (magicNumber == GrinEncoder.STORED_MAGIC_NUMBER) {
+				long size = channel.size() - 4;
+				int n = (int) Math.max(0, Math.min(length, size - offset));
+				return GrinIndex.readFully(channel, 4 + offset, n);
+			} else if (magicNumber == GrinEncoder.CHECKPOINTED_MAGIC_NUMBER) {
+				GrinCheckpoints checkpoints = GrinCheckpoints.read(channel);
+				if (checkpoints != null) {
+					return decode(channel, checkpoints, offset, length);
+				}
+			} else if (magicNumber == GrinEncoder.BLOCKED_MAGIC_NUMBER) {
+				GrinIndex index = GrinIndex.read(channel);
+				if (index != null) {
+					return decode(channel, index, offset, length);
+				}
+			}
+		}
+
+		RangeChannel range = new RangeChannel(offset, length);
+		BitInputStream in = new BitInputStream(infile, this.mapped);
+		BitOutputStream out = new BitOutputStream(range);
+		try {
+			decode(in.readBits(32), in, out);
+			out.flush();
+		} catch (RangeFull e) {
+			/* The rest of the file lies after the range */
+		} finally {
+			in.close();
+		}
+		return range.getRange();
+	}
+
+	/** Decodes a byte range of a checkpointed file, starting at the nearest
+	 * checkpoint at or before it and stopping as soon as the range is full
+	 * @param channel the .grin file
+	 * @param checkpoints the file's checkpoints
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 * @return a buffer holding the range
+	 */
+	private ByteBuffer decode(FileChannel channel, GrinCheckpoints checkpoints, long offset, int length) throws IOException {
+		long checkpoint = offset / checkpoints.getInterval();
+		if (checkpoint >= checkpoints.getCount()) {
+			return ByteBuffer.allocate(0);
+		}
+		long start = checkpoints.getBitOffset(0);
+		ByteBuffer header = GrinIndex.readFully(channel, 4, (int) ((start + 7) / 8 - 4));
+		HuffmanTree tree = HuffmanTree.readHeader(new BitInputStream(header));
+
+		/* The checkpoints bound the file's length from above */
+		long skip = offset - checkpoint * checkpoints.getInterval();
+		long upperBound = (long) checkpoints.getCount() * checkpoints.getInterval() - offset;
+		ByteBuffer range = ByteBuffer.allocate((int) Math.min(length, upperBound));
+
+		long bitOffset = checkpoints.getBitOffset((int) checkpoint);
+		channel.position(bitOffset / 8);
+		BitInputStream in = new BitInputStream(channel);
+		in.skipBits(bitOffset % 8);
+		while (range.hasRemaining()) {
+			int c = tree.readCode(in);
+			if (c == 256) {
+				break;
+			} else if (skip > 0) {
+				skip--;
+			} else {
+				range.put((byte) c);
 			}
+		}
+		range.flip();
+		return range;
+	}
 
-			HuffmanTree tree = new HuffmanTree(fmap);
+	/** Decodes a byte range of a blocked file, decoding only the blocks it
+	 * overlaps
+	 * @param channel the .grin file
+	 * @param index the file's block index
+	 * @param offset the first byte of the range
+	 * @param length the number of bytes in the range
+	 * @return a buffer holding the range
+	 */
+	private ByteBuffer decode(FileChannel channel, GrinIndex index, long offset, int length) throws IOException {
+		long end = Math.min(offset + length, index.getOriginalSize());
+		ByteBuffer range = ByteBuffer.allocate((int) Math.max(0, end - offset));
+		for (int i = 0; i < index.getCount() && range.hasRemaining(); i++) {
+			long blockStart = index.getOriginalOffset(i);
+			long blockEnd = blockStart + index.getOriginalLength(i);
+			if (blockEnd <= offset) {
+				continue;
+			}
+			ByteBuffer bytes = index.readBlock(channel, i).decode();
+			int from = (int) (Math.max(offset, blockStart) - blockStart);
+			int to = (int) (Math.min(end, blockEnd) - blockStart);
+			range.put(bytes.slice(bytes.position() + from, to - from));
+		}
+		range.flip();
+		return range;
+	}
+
+	/** Thrown by a RangeChannel once its range is full, to stop decoding */
+	private static class RangeFull extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		RangeFull() {
+			super(null, null, false, false);
+		}
+	}
+
+	/** A channel that keeps only a range of the bytes written to it. The
+	 * buffer grows as bytes of the range arrive, so a range running past the
+	 * end of a small file costs no more than the file.
+	 */
+	private static class RangeChannel implements WritableByteChannel {
+		private long skip;
+		private int length;       // bytes in the range
+		private ByteBuffer range;
+
+		/** Constructor
+		 * @param offset the number of bytes to drop before the range
+		 * @param length the number of bytes in the range
+		 */
+		RangeChannel(long offset, int length) {
+			this.skip = offset;
+			this.length = length;
+			this.range = ByteBuffer.allocate(Math.min(length, 1 << 16));
+		}
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			int dropped = (int) Math.min(this.skip, n);
+			this.skip -= dropped;
+			int kept = Math.min(n - dropped, this.length - this.range.position());
+			if (kept > this.range.remaining()) {
+				int capacity = (int) Math.min(this.length, Math.max(2L * this.range.capacity(), this.range.position() + kept));
+				this.range = ByteBuffer.allocate(capacity).put(this.range.flip());
+			}
+			this.range.put(src.slice(src.position() + dropped, kept));
+			src.position(src.limit());
+			if (this.range.position() == this.length) {
+				throw new RangeFull();
+			}
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+
+		/** @return a buffer holding the bytes kept */
+		ByteBuffer getRange() {
+			return this.range.flip();
+		}
+	}
+
+	/** Decodes a .grin stream in order, after its magic number
+	 * @param magicNumber the magic number the stream started with
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 */
+	private void decode(int magicNumber, BitInputStream in, BitOutputStream out) {
+		if(magicNumber == GrinEncoder.CANONICAL_MAGIC_NUMBER
+				|| magicNumber == GrinEncoder.CHECKPOINTED_MAGIC_NUMBER) {
+			HuffmanTree tree = HuffmanTree.readHeader(in);
 			tree.decode(in, out);
+		} else if(magicNumber == GrinEncoder.DICTIONARY_MAGIC_NUMBER) {
+			int id = in.readBits(32);
+			GrinDictionary dictionary = this.dictionaries.get(id);
+			if (dictionary == null) {
+				throw new IllegalArgumentException("Needs dictionary " + Integer.toHexString(id));
+			}
+			dictionary.getTree().decode(in, out);
+		} else if(magicNumber == GrinEncoder.STORED_MAGIC_NUMBER) {
+			GrinEncoder.copy(in, out);
+		} else if(magicNumber == GrinEncoder.MAGIC_NUMBER) {
+			new LegacyHuffmanTree(readFrequencies(in)).decode(in, out);
+		} else if(magicNumber == GrinEncoder.ADAPTIVE_MAGIC_NUMBER) {
+			new AdaptiveHuffmanTree().decode(in, out);
+		} else if(magicNumber == GrinArchive.MAGIC_NUMBER) {
+			throw new IllegalArgumentException("Archives hold many files; extract them instead");
+		} else if(magicNumber == GrinEncoder.BLOCKED_MAGIC_NUMBER) {
+			GrinBlock block = GrinBlock.read(in);
+			while (block != null) {
+				out.writeBytes(block.decode());
+				block = GrinBlock.read(in);
+			}
+		} else {
+			throw new IllegalArgumentException("Not appropriate magic number");
+		}
+	}
+
+	/** Reads the frequency header of a file written by earlier versions
+	 * @param in the BitInputStream being read
+	 * @return the frequency of each character, in the order they are listed
+	 */
+	static Map<Short, Integer> readFrequencies(BitInputStream in) {
+		Map<Short, Integer> fmap = new HashMap<Short, Integer>();
+		int leafCount = in.readBits(32);
+		if (leafCount < 0 || leafCount > HuffmanTree.SYMBOLS) {
+			throw new IllegalArgumentException("Bad frequency header");
+		}
+
+		for(int i = 0; i < leafCount; i++) {
+			fmap.put((short)in.readBits(16), in.readBits(32));
+		}
+		return fmap;
+	}
+
+	/** Decodes the blocks of a blocked .grin file concurrently, one per core,
+	 * writing each straight to its place in the pre-sized output file
+	 * @param channel the .grin file
+	 * @param index the file's block index
+	 * @param outfile the file to write
+	 */
+	private void decode(FileChannel channel, GrinIndex index, String outfile) throws IOException {
+		ExecutorService pool = this.executor != null ? this.executor
+				: Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+
+		try (RandomAccessFile file = new RandomAccessFile(outfile, "rw")) {
+			file.setLength(index.getOriginalSize());
+			FileChannel output = file.getChannel();
+
+			for (int i = 0; i < index.getCount(); i++) {
+				int block = i;
+				results.add(pool.submit(() -> {
+					ByteBuffer bytes = index.readBlock(channel, block).decode();
+					long position = index.getOriginalOffset(block);
+					while (bytes.hasRemaining()) {
+						position += output.write(bytes, position);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		} finally {
+			if (pool != this.executor) {
+				pool.shutdownNow();
+			}
+			for (Future<?> result : results) {
+				result.cancel(true);
+			}
 		}
-		in.close();
-		out.close();
 	}
 }
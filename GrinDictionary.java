@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** A code table trained on a sample corpus and shared by many small files.
+ * A file coded with a dictionary carries only the dictionary's ID instead of
+ * a code length header, and the decoder reuses the dictionary's tree and
+ * decode table instead of building its own.
+ *
+ * A dictionary file holds the MAGIC_NUMBER, the 32-bit ID and the
+ * tree's code length header. The ID is the CRC-32 of the header bytes.
+ */
+public class GrinDictionary {
+
+	/** Magic number of a dictionary file */
+	public static final int MAGIC_NUMBER = 1852;
+
+	private final int id;
+	private final HuffmanTree tree;
+
+	/** Constructs a dictionary around a tree, building its decode table now
+	 * so that the dictionary can be shared between threads
+	 * @param tree the tree
+	 */
+	public GrinDictionary(HuffmanTree tree) {
+		CRC32 crc = new CRC32();
+		crc.update(header(tree));
+		this.id = (int) crc.getValue();
+		this.tree = tree;
+		this.tree.buildDecodeTable();
+	}
+
+	/** Trains a dictionary on sample files. Every byte value is given a code,
+	 * so that files holding bytes the samples lack can still be coded.
+	 * @param files the sample files
+	 * @param maxCodeLength the longest code allowed
+	 * @return the dictionary
+	 * @throws IOException if a sample cannot be read
+	 */
+	public static GrinDictionary train(List<String> files, int maxCodeLength) throws IOException {
+		long[] counts = new long[Histogram.SYMBOLS];
+		for (String file : files) {
+			Histogram.add(counts, Histogram.count(file));
+		}
+		int[] frequencies = Histogram.toFrequencies(counts);
+		for (int c = 0; c < frequencies.length; c++) {
+			frequencies[c] = Math.max(frequencies[c], 1);
+		}
+		return new GrinDictionary(new HuffmanTree(frequencies, maxCodeLength));
+	}
+
+	/** Reads a dictionary file written by save
+	 * @param file the dictionary file
+	 * @return the dictionary
+	 * @throws IOException if the file cannot be read
+	 */
+	public static GrinDictionary load(String file) throws IOException {
+		BitInputStream in = new BitInputStream(file);
+		try {
+			if (in.readBits(32) != MAGIC_NUMBER) {
+				throw new IllegalArgumentException("Not a dictionary file: " + file);
+			}
+			int id = in.readBits(32);
+			GrinDictionary dictionary = new GrinDictionary(HuffmanTree.readHeader(in));
+			if (dictionary.id != id) {
+				throw new IllegalArgumentException("Dictionary file is corrupt: " + file);
+			}
+			return dictionary;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes the dictionary to a file
+	 * @param file the dictionary file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(String file) throws IOException {
+		BitOutputStream out = new BitOutputStream(file);
+		out.writeBits(MAGIC_NUMBER, 32);
+		out.writeBits(this.id, 32);
+		out.writeBytes(header(this.tree));
+		out.close();
+	}
+
+	/** @param tree a tree
+	 * @return the bytes of the tree's code length header */
+	private static ByteBuffer header(HuffmanTree tree) {
+		ByteBufferChannel bytes = new ByteBufferChannel(256);
+		BitOutputStream out = new BitOutputStream(bytes);
+		tree.writeHeader(out);
+		out.close();
+		return bytes.getBuffer();
+	}
+
+	/** @return the dictionary's ID, written in the files coded with it */
+	public int getId() {
+		return this.id;
+	}
+
+	/** @return the dictionary's tree */
+	public HuffmanTree getTree() {
+		return this.tree;
+	}
+}
@@ -1,55 +1,456 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GrinEncoder {
-	
-	private Map<Short, Integer> createFrequencyMap(String file) throws IOException {
-		BitInputStream in = new BitInputStream(file);
-		Map<Short, Integer> m = new HashMap<Short, Integer>();
-
-		short ch = (short) in.readBits(8);
-		while(ch != -1) {
-			if(m.containsKey(ch)) {
-				m.put((short)ch, m.get(ch) + 1);
-				
-				System.out.println((ch + ", " + m.get(ch)));
-				System.out.println();
-			} else {
-				m.put((short)ch, 1);
-				
-				System.out.println("Creating a new entry");
-				System.out.println((ch + ", " + m.get(ch)));
-			}
-			ch = (short) in.readBits(8);
+
+	/** Magic number of a file coded as one stream with a frequency header,
+	 * as written by earlier versions */
+	public static final int MAGIC_NUMBER = 1846;
+
+	/** Magic number of a file coded as independent GrinBlocks */
+	public static final int BLOCKED_MAGIC_NUMBER = 1847;
+
+	/** Magic number of a file coded with an AdaptiveHuffmanTree */
+	public static final int ADAPTIVE_MAGIC_NUMBER = 1848;
+
+	/** Magic number of a file coded as one stream with canonical codes */
+	public static final int CANONICAL_MAGIC_NUMBER = 1849;
+
+	/** Magic number of a file stored as it is, because coding would not
+	 * have made it smaller */
+	public static final int STORED_MAGIC_NUMBER = 1850;
+
+	/** Magic number of a file coded with a GrinDictionary's tree, which is
+	 * followed by the dictionary's ID instead of a code length header */
+	public static final int DICTIONARY_MAGIC_NUMBER = 1851;
+
+	/** Magic number of a file coded as one stream with canonical codes and
+	 * followed by GrinCheckpoints, so that byte ranges can be decoded
+	 * without decoding everything before them */
+	public static final int CHECKPOINTED_MAGIC_NUMBER = 1854;
+
+	private boolean mapped;
+	private int maxCodeLength = HuffmanTree.MAX_LENGTH;
+	private int blockType = GrinBlock.CANONICAL;
+	private GrinDictionary dictionary;
+	private int checkpointInterval;
+	private boolean verbose = true;
+	private ExecutorService executor; // shared pool for blocks, or null for one per encode
+	private long codedBits;   // code bits written by the last encode
+	private long optimalBits; // code bits it would have taken with no length limit
+
+	/** Constructs a GrinEncoder that reads its input through a buffer
+	 */
+	public GrinEncoder() {
+		this(false);
+	}
+
+	/** Constructs a GrinEncoder
+	 * @param mapped true iff the input file should be memory-mapped, so that
+	 *        both passes over it read straight from the page cache
+	 */
+	public GrinEncoder(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	/** Limits the length of the codes this encoder builds. Bounded lengths
+	 * keep decode tables small at the cost of some compression ratio, which
+	 * is reported on standard error after each encode.
+	 * @param maxCodeLength the longest code allowed, at least 9 bits
+	 */
+	public void setMaxCodeLength(int maxCodeLength) {
+		if (maxCodeLength < 9 || maxCodeLength > HuffmanTree.MAX_LENGTH) {
+			throw new IllegalArgumentException("Code length limit must be 9--" + HuffmanTree.MAX_LENGTH);
 		}
-		in.close();
-		return m;
+		this.maxCodeLength = maxCodeLength;
+	}
+
+	/** Chooses how blocks are coded. INTERLEAVED blocks split their codes
+	 * across several streams that decode faster on one core, at the cost
+	 * of a few bytes of jump table per block. CONTEXT blocks code each byte
+	 * with a tree chosen by the byte before it, which compresses structured
+	 * text better. ANS blocks are coded with tANS wherever its fractional
+	 * code lengths beat Huffman codes, as on skewed data. Only blocked and
+	 * in-memory encodes use it.
+	 * @param blockType GrinBlock.CANONICAL, INTERLEAVED, CONTEXT or ANS
+	 */
+	public void setBlockType(int blockType) {
+		if (blockType != GrinBlock.CANONICAL && blockType != GrinBlock.INTERLEAVED
+				&& blockType != GrinBlock.CONTEXT && blockType != GrinBlock.ANS) {
+			throw new IllegalArgumentException("Cannot code blocks of type " + blockType);
+		}
+		this.blockType = blockType;
+	}
+
+	/** Chooses whether single-stream file encodes print the tree's total
+	 * frequency and codes to standard output
+	 * @param verbose true to print them, as by default
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/** Makes single-stream file encodes record a seek checkpoint every
+	 * interval bytes, at a cost of 8 bytes per checkpoint. Blocked, adaptive,
+	 * dictionary, streaming and in-memory encodes have no checkpoints.
+	 * @param interval the number of bytes between checkpoints, or 0 for none
+	 */
+	public void setCheckpointInterval(int interval) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("Checkpoint interval must not be negative: " + interval);
+		}
+		this.checkpointInterval = interval;
+	}
+
+	/** Codes the blocks of blocked encodes on a pool shared with other work,
+	 * such as other files of a batch, instead of a pool of their own per
+	 * encode. The pool is left running.
+	 * @param executor the pool, or null for a pool per encode
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/** Codes single-stream and in-memory encodes with a shared dictionary
+	 * rather than a tree of their own, which saves the header and the tree
+	 * build on small inputs
+	 * @param dictionary the dictionary, or null to build a tree per input
+	 */
+	public void setDictionary(GrinDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/** Counts the characters of a file. The file is mapped and counted on
+	 * every core regardless of the mapped setting, since the count needs no
+	 * bit-level access.
+	 * @param file the file to count
+	 * @return the number of occurrences of each character in the file
+	 */
+	private long[] createFrequencies(String file) throws IOException {
+		return Histogram.count(file);
 	}
 
 	public void encode(String infile, String outfile) throws IOException {
-		Map<Short, Integer> map = createFrequencyMap(infile);
-		BitInputStream in = new BitInputStream(infile);
-		BitOutputStream out = new BitOutputStream(outfile, true);
-		
-		out.writeBits(1846, 32);  //converts 1846 into binary
-		
-		Iterator<Short> keySet = map.keySet().iterator();
-		
-		while (keySet.hasNext()) {
-			short key = keySet.next();
-			out.writeBits(key, 16);
-			out.writeBits(map.get(key), 32);
+		long[] counts = createFrequencies(infile);
+		if (this.dictionary != null) {
+			BitInputStream in = new BitInputStream(infile, this.mapped);
+			BitOutputStream out = new BitOutputStream(outfile);
+			encodeWithDictionary(counts, in, out);
+			in.close();
+			out.close();
+			return;
+		}
+		HuffmanTree tree = null;
+		if (GrinBlock.worthCoding(counts)) {
+			tree = new HuffmanTree(Histogram.toFrequencies(counts), this.maxCodeLength);
+		}
+		BitInputStream in = new BitInputStream(infile, this.mapped);
+		BitOutputStream out = new BitOutputStream(outfile);
+
+		if (tree == null || !GrinBlock.worthCoding(tree)) {
+			out.writeBits(STORED_MAGIC_NUMBER, 32);
+			copy(in, out);
+			in.close();
+			out.close();
+			this.codedBits = 0;
+			this.optimalBits = 0;
+			return;
 		}
 		
-		HuffmanTree tree = new HuffmanTree(map);
-		System.out.println(tree.getRootFrequency());
-		tree.printArr();
-		tree.encode(in, out);
+		GrinCheckpoints checkpoints = null;
+		if (this.checkpointInterval > 0) {
+			checkpoints = new GrinCheckpoints(this.checkpointInterval);
+			out.writeBits(CHECKPOINTED_MAGIC_NUMBER, 32);
+		} else {
+			out.writeBits(CANONICAL_MAGIC_NUMBER, 32);  //converts 1849 into binary
+		}
+
+		tree.writeHeader(out);
+		if (this.verbose) {
+			System.out.println(tree.getRootFrequency());
+			tree.printArr();
+		}
+		if (checkpoints != null) {
+			tree.encode(in, out, checkpoints);
+			out.flush();
+			checkpoints.write(out.bitsWritten() / 8, out);
+		} else {
+			tree.encode(in, out);
+		}
 		
 		in.close();
 		out.close();
+
+		this.codedBits = tree.getCodedBits();
+		this.optimalBits = tree.getOptimalBits();
+		reportLengthLimit();
+	}
+
+	/** Encodes bytes in memory as one stream with canonical codes, in the same
+	 * format as encode(String, String)
+	 * @param data the bytes to encode, which may be a direct buffer; its
+	 *        position is not moved
+	 * @return a buffer holding the .grin bytes
+	 */
+	public ByteBuffer encode(ByteBuffer data) {
+		ByteBufferChannel output = new ByteBufferChannel(data.remaining() / 2 + 64);
+		encode(data, output);
+		return output.getBuffer();
+	}
+
+	/** Encodes bytes in memory into a buffer supplied by the caller
+	 * @param data the bytes to encode, which may be a direct buffer; its
+	 *        position is not moved
+	 * @param dst the buffer to write the .grin bytes to, from its position,
+	 *        which is moved past them
+	 * @return the number of bytes written
+	 * @throws java.nio.BufferOverflowException if dst has too little room
+	 */
+	public int encode(ByteBuffer data, ByteBuffer dst) {
+		int start = dst.position();
+		encode(data, new ByteBufferChannel(dst));
+		return dst.position() - start;
+	}
+
+	/** Encodes bytes in memory
+	 * @param data the bytes to encode
+	 * @return the .grin bytes
+	 */
+	public byte[] encode(byte[] data) {
+		ByteBuffer coded = encode(ByteBuffer.wrap(data));
+		byte[] bytes = new byte[coded.remaining()];
+		coded.get(bytes);
+		return bytes;
+	}
+
+	/** Encodes bytes in memory as one stream with canonical codes, or
+	 * stored if coding would not make them smaller. Other block types are
+	 * written as a blocked file holding a single block.
+	 * @param data the bytes to encode; its position is not moved
+	 * @param output the channel to write
+	 */
+	private void encode(ByteBuffer data, WritableByteChannel output) {
+		if (this.dictionary != null) {
+			BitOutputStream out = new BitOutputStream(output);
+			encodeWithDictionary(Histogram.count(data), new BitInputStream(data), out);
+			out.flush();
+			return;
+		}
+		GrinBlock block = GrinBlock.encode(data, this.blockType, this.maxCodeLength);
+		BitOutputStream out = new BitOutputStream(output);
+		if (block.getType() == GrinBlock.STORED) {
+			out.writeBits(STORED_MAGIC_NUMBER, 32);
+			out.writeBytes(block.getPayload());
+		} else if (block.getType() == GrinBlock.CANONICAL) {
+			out.writeBits(CANONICAL_MAGIC_NUMBER, 32);
+			out.writeBytes(block.getPayload());
+		} else {
+			GrinIndex index = new GrinIndex();
+			out.writeBits(BLOCKED_MAGIC_NUMBER, 32);
+			index.add(4, block);
+			block.write(out);
+			GrinBlock.writeEnd(out);
+			index.write(4 + block.getFrameLength() + 1, out);
+		}
+		out.flush();
+
+		this.codedBits = block.getCodedBits();
+		this.optimalBits = block.getOptimalBits();
+	}
+
+	/** Encodes a stream with the dictionary's tree, or stores it if that
+	 * would not make it smaller
+	 * @param counts the number of occurrences of each byte value in the stream
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 */
+	private void encodeWithDictionary(long[] counts, BitInputStream in, BitOutputStream out) {
+		HuffmanTree tree = this.dictionary.getTree();
+		long bits = tree.getCodedBits(counts);
+		if (bits == Long.MAX_VALUE || bits + Integer.SIZE >= 8 * Histogram.total(counts)) {
+			out.writeBits(STORED_MAGIC_NUMBER, 32);
+			copy(in, out);
+			this.codedBits = 0;
+		} else {
+			out.writeBits(DICTIONARY_MAGIC_NUMBER, 32);
+			out.writeBits(this.dictionary.getId(), 32);
+			tree.encode(in, out);
+			this.codedBits = bits;
+		}
+		this.optimalBits = this.codedBits;
+	}
+
+	/** Copies the rest of a stream as it is
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 */
+	static void copy(BitInputStream in, BitOutputStream out) {
+		ByteBuffer bytes = in.readBytes(1 << 16);
+		while (bytes.hasRemaining()) {
+			out.writeBytes(bytes);
+			bytes = in.readBytes(1 << 16);
+		}
+	}
+
+	/** Encodes a file in a single pass with an AdaptiveHuffmanTree, with no
+	 * frequency count and no header beyond the magic number
+	 * @param infile the file to encode
+	 * @param outfile the file to write
+	 */
+	public void encodeAdaptive(String infile, String outfile) throws IOException {
+		BitInputStream in = new BitInputStream(infile, this.mapped);
+		BitOutputStream out = new BitOutputStream(outfile);
+
+		out.writeBits(ADAPTIVE_MAGIC_NUMBER, 32);
+		new AdaptiveHuffmanTree().encode(in, out);
+
+		in.close();
+		out.close();
+	}
+
+	/** Encodes a stream in a single pass with an AdaptiveHuffmanTree
+	 * @param input the channel to encode, read until its end
+	 * @param output the channel to write
+	 */
+	public void encodeAdaptive(ReadableByteChannel input, WritableByteChannel output) {
+		BitOutputStream out = new BitOutputStream(output);
+
+		out.writeBits(ADAPTIVE_MAGIC_NUMBER, 32);
+		new AdaptiveHuffmanTree().encode(new BitInputStream(input), out);
+		out.flush();
+	}
+
+	/** Encodes a stream with the dictionary's tree in a single pass. The
+	 * length of the stream is not known in advance, so it is always coded,
+	 * never stored; a trained dictionary has a code for every byte.
+	 * @param input the channel to encode, read until its end
+	 * @param output the channel to write
+	 */
+	public void encodeWithDictionary(ReadableByteChannel input, WritableByteChannel output) {
+		if (this.dictionary == null) {
+			throw new IllegalArgumentException("No dictionary to encode with");
+		}
+		BitOutputStream out = new BitOutputStream(output);
+		out.writeBits(DICTIONARY_MAGIC_NUMBER, 32);
+		out.writeBits(this.dictionary.getId(), 32);
+		this.dictionary.getTree().encode(new BitInputStream(input), out);
+		out.flush();
+	}
+
+	/** Encodes a file as independently coded blocks
+	 * @param infile the file to encode
+	 * @param outfile the file to write
+	 * @param blockSize the number of input bytes per block
+	 */
+	public void encode(String infile, String outfile, int blockSize) throws IOException {
+		try (FileChannel input = new FileInputStream(infile).getChannel();
+				FileChannel output = new FileOutputStream(outfile).getChannel()) {
+			encode(input, output, blockSize);
+		}
+	}
+
+	/** Encodes a stream as independently coded blocks. Each block is coded
+	 * with a tree built from its own histogram as soon as it has been read,
+	 * so the input is read once and memory use is bounded by the block size.
+	 * Blocks are coded concurrently, one per core, and written in order,
+	 * followed by a GrinIndex of where each block's frame starts.
+	 * @param input the channel to encode, read until its end
+	 * @param output the channel to write
+	 * @param blockSize the number of input bytes per block
+	 */
+	public void encode(ReadableByteChannel input, WritableByteChannel output, int blockSize) throws IOException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = this.executor != null ? this.executor : Executors.newFixedThreadPool(threads);
+		Deque<Future<GrinBlock>> pending = new ArrayDeque<Future<GrinBlock>>();
+		GrinIndex index = new GrinIndex();
+		BitOutputStream out = new BitOutputStream(output);
+		this.codedBits = 0;
+		this.optimalBits = 0;
+
+		try {
+			out.writeBits(BLOCKED_MAGIC_NUMBER, 32);
+			long offset = 4;
+
+			ByteBuffer data = readBlock(input, blockSize);
+			while (data.hasRemaining()) {
+				ByteBuffer block = data;
+				pending.add(pool.submit(() -> GrinBlock.encode(block, this.blockType, this.maxCodeLength)));
+
+				/* Keep a bounded number of blocks in flight */
+				if (pending.size() >= 2 * threads) {
+					offset = writeBlock(pending.remove().get(), offset, index, out);
+				}
+				data = readBlock(input, blockSize);
+			}
+			while (!pending.isEmpty()) {
+				offset = writeBlock(pending.remove().get(), offset, index, out);
+			}
+			GrinBlock.writeEnd(out);
+			index.write(offset + 1, out);
+			reportLengthLimit();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		} finally {
+			if (pool != this.executor) {
+				pool.shutdownNow();
+			}
+			for (Future<GrinBlock> block : pending) {
+				block.cancel(true);
+			}
+			out.flush();
+		}
+	}
+
+	/** Reads the next block of a stream, waiting until the block is full or
+	 * the stream ends
+	 * @param input the channel to read
+	 * @param blockSize the number of bytes per block
+	 * @return a buffer holding the block, empty at the end of the stream
+	 */
+	private static ByteBuffer readBlock(ReadableByteChannel input, int blockSize) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(blockSize);
+		while (data.hasRemaining()) {
+			if (input.read(data) == -1) {
+				break;
+			}
+		}
+		data.flip();
+		return data;
+	}
+
+	/** Writes a block and records it in the index
+	 * @param block the block
+	 * @param offset the offset in the output the block's frame starts at
+	 * @param index the index of the blocks written so far
+	 * @param out the BitOutputStream being written to
+	 * @return the offset after the block's frame
+	 */
+	private long writeBlock(GrinBlock block, long offset, GrinIndex index, BitOutputStream out) {
+		this.codedBits += block.getCodedBits();
+		this.optimalBits += block.getOptimalBits();
+		index.add(offset, block);
+		block.write(out);
+		return offset + block.getFrameLength();
+	}
+
+	/** Reports how much the code length limit cost the last encode */
+	private void reportLengthLimit() {
+		if (this.maxCodeLength < HuffmanTree.MAX_LENGTH) {
+			double loss = this.optimalBits == 0 ? 0
+					: 100.0 * (this.codedBits - this.optimalBits) / this.optimalBits;
+			System.err.println(String.format("Code lengths limited to %d bits: %d code bits, %.3f%% more than unlimited",
+					this.maxCodeLength, this.codedBits, loss));
+		}
 	}
 }
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/** The block offset index at the end of a blocked .grin file. For every block
+ * it records where its frame starts in the file, how long the frame is, and
+ * where its bytes belong in the decoded output. The index is followed by a
+ * 12-byte trailer holding the index's own offset and the blocked magic number,
+ * so a reader can find it from the end of the file.
+ */
+public class GrinIndex {
+
+	/** Bytes in the trailer after the index */
+	private static final int TRAILER_SIZE = 12;
+
+	/** Bytes in one index entry */
+	private static final int ENTRY_SIZE = 24;
+
+	private int count;
+	private long[] frameOffsets;
+	private int[] frameLengths;
+	private long[] originalOffsets;
+	private int[] originalLengths;
+
+	/** Constructs an empty index
+	 */
+	public GrinIndex() {
+		this.frameOffsets = new long[16];
+		this.frameLengths = new int[16];
+		this.originalOffsets = new long[16];
+		this.originalLengths = new int[16];
+	}
+
+	/** Records the next block
+	 * @param frameOffset the offset of the block's frame in the .grin file
+	 * @param block the block
+	 */
+	public void add(long frameOffset, GrinBlock block) {
+		if (this.count == this.frameOffsets.length) {
+			int n = 2 * this.count;
+			this.frameOffsets = Arrays.copyOf(this.frameOffsets, n);
+			this.frameLengths = Arrays.copyOf(this.frameLengths, n);
+			this.originalOffsets = Arrays.copyOf(this.originalOffsets, n);
+			this.originalLengths = Arrays.copyOf(this.originalLengths, n);
+		}
+		this.frameOffsets[this.count] = frameOffset;
+		this.frameLengths[this.count] = block.getFrameLength();
+		this.originalOffsets[this.count] = getOriginalSize();
+		this.originalLengths[this.count] = block.getOriginalLength();
+		this.count++;
+	}
+
+	/** Writes the index and its trailer
+	 * @param indexOffset the offset in the .grin file the index is written at
+	 * @param out the BitOutputStream being written to
+	 */
+	public void write(long indexOffset, BitOutputStream out) {
+		out.writeBits(this.count, 32);
+		for (int i = 0; i < this.count; i++) {
+			writeLong(this.frameOffsets[i], out);
+			out.writeBits(this.frameLengths[i], 32);
+			writeLong(this.originalOffsets[i], out);
+			out.writeBits(this.originalLengths[i], 32);
+		}
+		writeLong(indexOffset, out);
+		out.writeBits(GrinEncoder.BLOCKED_MAGIC_NUMBER, 32);
+	}
+
+	/** Writes an index listing no blocks whose trailer points nowhere, for
+	 * streams with too many blocks to index. Readers find no index and
+	 * decode the blocks in order, and stream readers skip it as any other.
+	 * @param out the BitOutputStream being written to
+	 */
+	public static void writeNone(BitOutputStream out) {
+		out.writeBits(0, 32);
+		writeLong(0, out);
+		out.writeBits(GrinEncoder.BLOCKED_MAGIC_NUMBER, 32);
+	}
+
+	/** Gives the size of an index's entries and trailer, so a stream reader
+	 * can skip an index once it has read the 32-bit count
+	 * @param count the number of blocks the index lists
+	 * @return the number of bytes after the count
+	 */
+	static long sizeAfterCount(long count) {
+		return count * ENTRY_SIZE + TRAILER_SIZE;
+	}
+
+	/** Reads the index of a blocked .grin file
+	 * @param channel the .grin file
+	 * @return the index, or null if the file has no index trailer
+	 * @throws IOException if the file cannot be read
+	 */
+	public static GrinIndex read(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 4 + TRAILER_SIZE) {
+			return null;
+		}
+		ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+		long indexOffset = trailer.getLong();
+		if (trailer.getInt() != GrinEncoder.BLOCKED_MAGIC_NUMBER
+				|| indexOffset < 4 || indexOffset > size - TRAILER_SIZE - 4) {
+			return null;
+		}
+
+		ByteBuffer entries = readFully(channel, indexOffset, (int) (size - TRAILER_SIZE - indexOffset));
+		int count = entries.getInt();
+		if (entries.remaining() != (long) count * ENTRY_SIZE) {
+			return null;
+		}
+		GrinIndex index = new GrinIndex();
+		index.count = count;
+		index.frameOffsets = new long[count];
+		index.frameLengths = new int[count];
+		index.originalOffsets = new long[count];
+		index.originalLengths = new int[count];
+		for (int i = 0; i < count; i++) {
+			index.frameOffsets[i] = entries.getLong();
+			index.frameLengths[i] = entries.getInt();
+			index.originalOffsets[i] = entries.getLong();
+			index.originalLengths[i] = entries.getInt();
+		}
+		return index;
+	}
+
+	/** Reads a block's frame from the .grin file
+	 * @param channel the .grin file
+	 * @param i the block number
+	 * @return the block
+	 * @throws IOException if the file cannot be read
+	 */
+	public GrinBlock readBlock(FileChannel channel, int i) throws IOException {
+		ByteBuffer frame = readFully(channel, this.frameOffsets[i], this.frameLengths[i]);
+		return GrinBlock.read(new BitInputStream(frame));
+	}
+
+	/** @return the number of blocks */
+	public int getCount() {
+		return this.count;
+	}
+
+	/** @param i the block number
+	 * @return where the block's bytes start in the decoded output
+	 */
+	public long getOriginalOffset(int i) {
+		return this.originalOffsets[i];
+	}
+
+	/** @param i the block number
+	 * @return the number of bytes the block decodes to
+	 */
+	public int getOriginalLength(int i) {
+		return this.originalLengths[i];
+	}
+
+	/** @return the number of bytes the whole file decodes to */
+	public long getOriginalSize() {
+		if (this.count == 0) {
+			return 0;
+		}
+		return this.originalOffsets[this.count - 1] + this.originalLengths[this.count - 1];
+	}
+
+	/** Writes a 64-bit value as two 32-bit halves
+	 * @param value the value
+	 * @param out the BitOutputStream being written to
+	 */
+	private static void writeLong(long value, BitOutputStream out) {
+		out.writeBits((int) (value >>> 32), 32);
+		out.writeBits((int) value, 32);
+	}
+
+	/** Reads a range of a file with positional reads
+	 * @param channel the file
+	 * @param position where the range starts
+	 * @param length the number of bytes in the range
+	 * @return a buffer holding the range
+	 * @throws IOException if the range cannot be read
+	 */
+	static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, position + bytes.position()) == -1) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+}
@@ -0,0 +1,45 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/** An InputStream that decompresses a blocked .grin stream read from another
+ * InputStream, such as one written by a GrinOutputStream. Bytes sent before
+ * a sync flush can be read as soon as they arrive.
+ */
+public class GrinInputStream extends InputStream {
+
+	private GrinReadableChannel channel;
+	private byte[] one = new byte[1];
+
+	/** Constructs a stream, reading the magic number straight away
+	 * @param input the stream to read the .grin stream from
+	 * @throws IOException if the magic number cannot be read
+	 */
+	public GrinInputStream(InputStream input) throws IOException {
+		this.channel = new GrinReadableChannel(Channels.newChannel(input));
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(this.one, 0, 1) == -1 ? -1 : this.one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		return this.channel.read(ByteBuffer.wrap(b, off, len));
+	}
+
+	@Override
+	public int available() {
+		return this.channel.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
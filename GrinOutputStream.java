@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/** An OutputStream that compresses what is written to it into a blocked .grin
+ * stream, which can be stacked on any other OutputStream the way a
+ * GZIPOutputStream is. flush is a sync point: everything written before it
+ * can be decoded by a GrinInputStream on the other end.
+ */
+public class GrinOutputStream extends OutputStream {
+
+	private OutputStream output;
+	private GrinWritableChannel channel;
+	private byte[] one = new byte[1];
+
+	/** Constructs a stream coding blocks of GrinWritableChannel.DEFAULT_BLOCK_SIZE bytes
+	 * @param output the stream to write the .grin stream to
+	 */
+	public GrinOutputStream(OutputStream output) {
+		this(output, GrinWritableChannel.DEFAULT_BLOCK_SIZE);
+	}
+
+	/** Constructs a stream, writing the magic number straight away
+	 * @param output the stream to write the .grin stream to
+	 * @param blockSize the number of input bytes per block
+	 */
+	public GrinOutputStream(OutputStream output, int blockSize) {
+		this.output = output;
+		this.channel = new GrinWritableChannel(Channels.newChannel(output), blockSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.one[0] = (byte) b;
+		write(this.one, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.channel.write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/** Codes the bytes written since the last block and flushes everything
+	 * written so far through the underlying stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.channel.flush();
+		this.output.flush();
+	}
+
+	/** Writes the end of the .grin stream without closing the underlying stream
+	 */
+	public void finish() throws IOException {
+		this.channel.finish();
+		this.output.flush();
+	}
+
+	/** Finishes the .grin stream and closes the underlying stream */
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+}
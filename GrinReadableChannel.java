@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/** A ReadableByteChannel that decompresses a blocked .grin stream read from
+ * another channel, such as one written by a GrinWritableChannel. Frames are
+ * read from the input exactly, never ahead, so every block sent before a sync
+ * flush can be read without waiting for the next one. The GrinIndex after the
+ * last block is skipped, leaving the input just past the .grin stream.
+ */
+public class GrinReadableChannel implements ReadableByteChannel {
+
+	private ReadableByteChannel input;
+	private ByteBuffer block;   // decoded bytes not yet read
+	private boolean finished;   // true once the END frame has been read
+	private boolean open = true;
+
+	/** Constructs a channel, reading the magic number straight away
+	 * @param input the channel to read the .grin stream from
+	 * @throws IOException if the magic number cannot be read
+	 */
+	public GrinReadableChannel(ReadableByteChannel input) throws IOException {
+		this.input = input;
+		this.block = ByteBuffer.allocate(0);
+		if (readFully(4).getInt() != GrinEncoder.BLOCKED_MAGIC_NUMBER) {
+			throw new IllegalArgumentException("Not appropriate magic number");
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!this.open) {
+			throw new ClosedChannelException();
+		} else if (!dst.hasRemaining()) {
+			return 0;
+		}
+		while (!this.block.hasRemaining()) {
+			if (this.finished) {
+				return -1;
+			}
+			nextBlock();
+		}
+		int count = Math.min(dst.remaining(), this.block.remaining());
+		dst.put(this.block.slice(this.block.position(), count));
+		this.block.position(this.block.position() + count);
+		return count;
+	}
+
+	/** @return the number of decoded bytes that can be read without reading
+	 *          from the input */
+	public int available() {
+		return this.block.remaining();
+	}
+
+	/** Reads and decodes the next frame, or skips the index after the END frame */
+	private void nextBlock() throws IOException {
+		int type = readFully(1).get() & 0xFF;
+		if (type == GrinBlock.END) {
+			long count = readFully(4).getInt() & 0xFFFFFFFFL;
+			skipFully(GrinIndex.sizeAfterCount(count));
+			this.finished = true;
+			return;
+		}
+		ByteBuffer header = readFully(8);
+		int originalLength = header.getInt();
+		ByteBuffer payload = readFully(header.getInt());
+		this.block = new GrinBlock(type, originalLength, payload).decode();
+	}
+
+	/** Reads exactly n bytes of the input
+	 * @param n the number of bytes
+	 * @return a buffer holding the bytes
+	 * @throws IOException if the input ends first
+	 */
+	private ByteBuffer readFully(int n) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(n);
+		while (bytes.hasRemaining()) {
+			if (this.input.read(bytes) == -1) {
+				throw new IOException("Unexpected end of .grin stream");
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	/** Reads and discards exactly n bytes of the input
+	 * @param n the number of bytes
+	 * @throws IOException if the input ends first
+	 */
+	private void skipFully(long n) throws IOException {
+		while (n > 0) {
+			int count = (int) Math.min(n, 1 << 16);
+			readFully(count);
+			n -= count;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.open = false;
+		this.input.close();
+	}
+}
@@ -0,0 +1,281 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/** A long-running process that encodes and decodes in memory for clients on
+ * a Unix domain socket or a loopback TCP port, so that callers pay neither
+ * JVM startup nor JIT warm-up per request.
+ *
+ * Each connection carries any number of requests, answered in order. A
+ * request is an operation byte (ENCODE or DECODE), a 32-bit length and that
+ * many bytes of data, at most MAX_FRAME_SIZE. A response is a status byte
+ * (OK or ERROR), a 32-bit length and that many bytes: the coded data, or a
+ * UTF-8 error message.
+ */
+public class GrinServer {
+
+	/** Request operation: encode the data */
+	public static final int ENCODE = 'E';
+
+	/** Request operation: decode the data */
+	public static final int DECODE = 'D';
+
+	/** Response status: the data is the result */
+	public static final int OK = 0;
+
+	/** Response status: the data is an error message */
+	public static final int ERROR = 1;
+
+	/** TCP port used when no socket or port is given */
+	public static final int DEFAULT_PORT = 1846;
+
+	/** Bytes in a request or response header */
+	static final int HEADER_SIZE = 5;
+
+	/** Largest request data the server accepts; longer requests are read
+	 * and discarded and answered with an ERROR */
+	public static final int MAX_FRAME_SIZE = 1 << 28;
+
+	private Grin grin;
+	private SocketAddress address;
+	private Semaphore cpu;
+	private Semaphore memory; // KiB of request data connections may hold
+
+	/** Constructor
+	 * @param grin the codec options to code requests with
+	 * @param address where to listen
+	 */
+	public GrinServer(Grin grin, SocketAddress address) {
+		this.grin = grin;
+		this.address = address;
+		this.cpu = new Semaphore(Runtime.getRuntime().availableProcessors());
+		long budget = Math.max(MAX_FRAME_SIZE, Runtime.getRuntime().maxMemory() / 4);
+		this.memory = new Semaphore((int) (budget >> 10));
+	}
+
+	/** Chooses the address of a server
+	 * @param socket the path of a Unix domain socket, or null for TCP
+	 * @param port the loopback TCP port, or 0 for DEFAULT_PORT
+	 * @return the address
+	 */
+	public static SocketAddress address(String socket, int port) {
+		if (socket != null) {
+			return UnixDomainSocketAddress.of(socket);
+		}
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), port > 0 ? port : DEFAULT_PORT);
+	}
+
+	/** Warms up the codec, then accepts connections until the process is
+	 * killed, serving each on its own thread
+	 */
+	public void serve() throws IOException {
+		warmUp();
+		ServerSocketChannel server;
+		if (this.address instanceof UnixDomainSocketAddress) {
+			Path path = ((UnixDomainSocketAddress) this.address).getPath();
+			if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+				if (!isSocket(path)) {
+					throw new IllegalArgumentException(path + " exists and is not a socket");
+				}
+				Files.delete(path);
+			}
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			server = ServerSocketChannel.open();
+		}
+		server.bind(this.address);
+		System.err.println("Serving on " + this.address);
+
+		/* A thread per connection, however many are open: an idle client
+		 * blocks only its own thread, and the cpu permits bound the coding */
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			while (true) {
+				SocketChannel client = server.accept();
+				pool.submit(() -> handle(client));
+			}
+		} finally {
+			pool.shutdownNow();
+			server.close();
+		}
+	}
+
+	/** @param path an existing file
+	 * @return true iff it is a Unix domain socket, such as one left by an
+	 *         earlier server */
+	private static boolean isSocket(Path path) throws IOException {
+		int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+		return (mode & 0170000) == 0140000;
+	}
+
+	/** Codes a generated corpus until the hot paths have been compiled, so
+	 * the first clients do not wait on the JIT
+	 */
+	private void warmUp() {
+		ByteBuffer data = ByteBuffer.wrap(GrinBenchmark.generate("text", 1 << 20, new Random(1846)));
+		for (int i = 0; i < 10; i++) {
+			ByteBuffer coded = this.grin.newEncoder().encode(data);
+			this.grin.newDecoder().decode(coded);
+		}
+	}
+
+	/** Answers the requests of one connection until the client closes it
+	 * @param client the connection
+	 */
+	private void handle(SocketChannel client) {
+		try (SocketChannel channel = client) {
+			while (true) {
+				ByteBuffer header = readFully(channel, HEADER_SIZE);
+				if (header == null) {
+					return;
+				}
+				int op = header.get();
+				int length = header.getInt();
+				if (length < 0) {
+					return;
+				}
+				if (length > MAX_FRAME_SIZE) {
+					skip(channel, length);
+					fail(channel, "Request of " + length + " bytes is larger than the limit of " + MAX_FRAME_SIZE);
+					continue;
+				}
+				/* However many connections are open, the requests they hold
+				 * in memory stay within a quarter of the heap */
+				int kib = (length + 1023) >> 10;
+				this.memory.acquire(kib);
+				try {
+					ByteBuffer data;
+					try {
+						data = readFully(channel, length);
+					} catch (OutOfMemoryError e) {
+						skip(channel, length);
+						fail(channel, "No memory for a request of " + length + " bytes");
+						continue;
+					}
+					if (data == null) {
+						return;
+					}
+					respond(channel, op, data);
+				} finally {
+					this.memory.release(kib);
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			System.err.println("Connection failed: " + e);
+		}
+	}
+
+	/** Reads and discards bytes of a request the server will not code
+	 * @param channel the connection
+	 * @param n the number of bytes
+	 * @throws EOFException if the connection ended first
+	 */
+	private static void skip(SocketChannel channel, int n) throws IOException {
+		ByteBuffer discard = ByteBuffer.allocate(1 << 16);
+		while (n > 0) {
+			discard.clear().limit(Math.min(n, discard.capacity()));
+			int read = channel.read(discard);
+			if (read == -1) {
+				throw new EOFException("Connection ended inside a frame");
+			}
+			n -= read;
+		}
+	}
+
+	/** Logs an error and sends it to the client
+	 * @param channel the connection
+	 * @param message the error message
+	 */
+	private static void fail(SocketChannel channel, String message) throws IOException {
+		System.err.println("Request failed: " + message);
+		write(channel, ERROR, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** Codes one request, holding a CPU permit while it does, and writes
+	 * the response
+	 * @param channel the connection
+	 * @param op the request operation
+	 * @param data the request data
+	 */
+	private void respond(SocketChannel channel, int op, ByteBuffer data) throws IOException, InterruptedException {
+		ByteBuffer result = null;
+		String error = null;
+		this.cpu.acquire();
+		try {
+			if (op == ENCODE) {
+				result = this.grin.newEncoder().encode(data);
+			} else if (op == DECODE) {
+				result = this.grin.newDecoder().decode(data);
+			} else {
+				throw new IllegalArgumentException("Unknown operation: " + op);
+			}
+		} catch (RuntimeException e) {
+			error = String.valueOf(e.getMessage());
+		} catch (Error e) {
+			/* Such as running out of memory on one large request: the
+			 * connection and the server carry on */
+			error = e.toString();
+		} finally {
+			this.cpu.release();
+		}
+
+		/* Written without the permit, so a client that stops reading holds
+		 * up only its own connection */
+		if (error != null) {
+			fail(channel, error);
+		} else {
+			write(channel, OK, result);
+		}
+	}
+
+	/** Writes a frame: a type byte, a 32-bit length and the data
+	 * @param channel the connection
+	 * @param type the operation or status
+	 * @param data the data
+	 */
+	static void write(SocketChannel channel, int type, ByteBuffer data) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put((byte) type).putInt(data.remaining()).flip();
+		ByteBuffer[] frame = { header, data };
+		while (data.hasRemaining() || header.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	/** Reads exactly n bytes
+	 * @param channel the channel
+	 * @param n the number of bytes
+	 * @return a buffer holding them, or null if the channel ended before the
+	 *         first of them
+	 * @throws EOFException if the channel ended part way through them
+	 */
+	static ByteBuffer readFully(ReadableByteChannel channel, int n) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(n);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes) == -1) {
+				if (bytes.position() == 0 && n > 0) {
+					return null;
+				}
+				throw new EOFException("Connection ended inside a frame");
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/** A WritableByteChannel that compresses what is written to it into a blocked
+ * .grin stream on another channel. Bytes are gathered into blocks, and each
+ * block is coded with its own HuffmanTree once it fills or the channel is
+ * flushed, so memory use is bounded by the block size and the index.
+ *
+ * flush is a sync point: every byte written before it is framed and sent, so
+ * a GrinReadableChannel on the other end can decode all of it without waiting
+ * for more. Closing ends the blocks and writes a GrinIndex, so the output is
+ * an ordinary blocked .grin file. Streams of more than MAX_INDEXED_BLOCKS
+ * blocks, such as long-lived ones flushed per message, drop their index and
+ * end with an empty one; they still decode, in order.
+ */
+public class GrinWritableChannel implements WritableByteChannel {
+
+	/** Input bytes per block when none is given */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+	/** Most blocks the index is kept for, at 24 bytes each */
+	public static final int MAX_INDEXED_BLOCKS = 1 << 16;
+
+	private BitOutputStream out;
+	private ByteBuffer block;   // bytes written but not yet coded
+	private GrinIndex index;    // null once there are too many blocks to index
+	private long offset;        // bytes of .grin output written so far
+	private boolean finished;
+	private boolean open = true;
+
+	/** Constructs a channel coding blocks of DEFAULT_BLOCK_SIZE bytes
+	 * @param output the channel to write the .grin stream to
+	 */
+	public GrinWritableChannel(WritableByteChannel output) {
+		this(output, DEFAULT_BLOCK_SIZE);
+	}
+
+	/** Constructs a channel, writing the magic number straight away
+	 * @param output the channel to write the .grin stream to
+	 * @param blockSize the number of input bytes per block
+	 */
+	public GrinWritableChannel(WritableByteChannel output, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Illegal block size: " + blockSize);
+		}
+		this.out = new BitOutputStream(output);
+		this.block = ByteBuffer.allocate(blockSize);
+		this.index = new GrinIndex();
+		this.out.writeBits(GrinEncoder.BLOCKED_MAGIC_NUMBER, 32);
+		this.offset = 4;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (this.finished) {
+			throw new ClosedChannelException();
+		}
+		int n = src.remaining();
+		while (src.hasRemaining()) {
+			int count = Math.min(src.remaining(), this.block.remaining());
+			this.block.put(src.slice(src.position(), count));
+			src.position(src.position() + count);
+			if (!this.block.hasRemaining()) {
+				writeBlock();
+			}
+		}
+		return n;
+	}
+
+	/** Codes the bytes written since the last block and sends everything
+	 * written so far to the output channel
+	 */
+	public void flush() throws IOException {
+		if (this.finished) {
+			throw new ClosedChannelException();
+		}
+		writeBlock();
+		this.out.flush();
+	}
+
+	/** Codes the last block and writes the end of the .grin stream, without
+	 * closing the output channel. Nothing more can be written afterwards.
+	 */
+	public void finish() throws IOException {
+		if (this.finished) {
+			return;
+		}
+		writeBlock();
+		GrinBlock.writeEnd(this.out);
+		if (this.index != null) {
+			this.index.write(this.offset + 1, this.out);
+		} else {
+			GrinIndex.writeNone(this.out);
+		}
+		this.out.flush();
+		this.finished = true;
+	}
+
+	/** Codes the bytes gathered so far, if any, as the next block */
+	private void writeBlock() {
+		if (this.block.position() == 0) {
+			return;
+		}
+		this.block.flip();
+		GrinBlock coded = GrinBlock.encode(this.block);
+		if (this.index != null && this.index.getCount() == MAX_INDEXED_BLOCKS) {
+			this.index = null;
+		} else if (this.index != null) {
+			this.index.add(this.offset, coded);
+		}
+		coded.write(this.out);
+		this.offset += coded.getFrameLength();
+		this.block.clear();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/** Finishes the .grin stream and closes the output channel */
+	@Override
+	public void close() throws IOException {
+		if (!this.open) {
+			return;
+		}
+		finish();
+		this.open = false;
+		this.out.close();
+	}
+}
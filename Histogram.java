@@ -0,0 +1,189 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** Counts how often each byte value occurs in a file or buffer.
+ */
+public class Histogram {
+
+	/** Number of distinct byte values */
+	public static final int SYMBOLS = 256;
+
+	/** Bytes counted by one task before it stops splitting its range */
+	private static final int SPLIT_SIZE = 1 << 22;
+
+	/** Bytes mapped at a time while counting a file */
+	private static final int CHUNK_SIZE = 1 << 30;
+
+	/** Counts the bytes of a slice of a buffer, splitting large slices in two
+	 * and counting the halves in parallel.
+	 */
+	private static class CountTask extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private ByteBuffer data;
+		private int from;
+		private int to;
+
+		/** Constructor
+		 * @param data the buffer to count
+		 * @param from the index of the first byte to count
+		 * @param to the index after the last byte to count
+		 */
+		public CountTask(ByteBuffer data, int from, int to) {
+			this.data = data;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (this.to - this.from <= SPLIT_SIZE) {
+				return count(this.data, this.from, this.to);
+			}
+			int mid = (this.from + this.to) >>> 1;
+			CountTask left = new CountTask(this.data, this.from, mid);
+			left.fork();
+			long[] counts = new CountTask(this.data, mid, this.to).compute();
+			add(counts, left.join());
+			return counts;
+		}
+	}
+
+	/** Counts the remaining bytes of a buffer, without moving its position
+	 * @param data the buffer to count
+	 * @return the number of occurrences of each byte value
+	 */
+	public static long[] count(ByteBuffer data) {
+		return count(data, data.position(), data.limit());
+	}
+
+	/** Counts the bytes of a file, counting large files on every core
+	 * @param file the file to count
+	 * @return the number of occurrences of each byte value
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long[] count(String file) throws IOException {
+		long[] counts = new long[SYMBOLS];
+		try (FileChannel channel = new FileInputStream(file).getChannel()) {
+			long size = channel.size();
+			for (long pos = 0; pos < size; pos += CHUNK_SIZE) {
+				ByteBuffer chunk = channel.map(MapMode.READ_ONLY, pos, Math.min(CHUNK_SIZE, size - pos));
+				add(counts, ForkJoinPool.commonPool().invoke(new CountTask(chunk, 0, chunk.limit())));
+			}
+		}
+		return counts;
+	}
+
+	/** Counts the bytes between two indexes of a buffer. Four count tables are
+	 * filled in turn so that runs of the same byte do not wait on each other's
+	 * increments.
+	 * @param data the buffer to count
+	 * @param from the index of the first byte to count
+	 * @param to the index after the last byte to count
+	 * @return the number of occurrences of each byte value
+	 */
+	private static long[] count(ByteBuffer data, int from, int to) {
+		int[] c0 = new int[SYMBOLS];
+		int[] c1 = new int[SYMBOLS];
+		int[] c2 = new int[SYMBOLS];
+		int[] c3 = new int[SYMBOLS];
+
+		int i = from;
+		for (; i + Integer.BYTES <= to; i += Integer.BYTES) {
+			int word = data.getInt(i);
+			c0[word >>> 24]++;
+			c1[(word >>> 16) & 0xFF]++;
+			c2[(word >>> 8) & 0xFF]++;
+			c3[word & 0xFF]++;
+		}
+		for (; i < to; i++) {
+			c0[data.get(i) & 0xFF]++;
+		}
+
+		long[] counts = new long[SYMBOLS];
+		for (int s = 0; s < SYMBOLS; s++) {
+			counts[s] = (long) c0[s] + c1[s] + c2[s] + c3[s];
+		}
+		return counts;
+	}
+
+	/** Adds one histogram into another
+	 * @param counts the histogram being added to
+	 * @param more the histogram being added
+	 */
+	public static void add(long[] counts, long[] more) {
+		for (int s = 0; s < counts.length; s++) {
+			counts[s] += more[s];
+		}
+	}
+
+	/** Converts a histogram into the frequencies a HuffmanTree is built from.
+	 * Counts are halved, keeping every used byte at least 1, until their total
+	 * fits the tree's int frequencies.
+	 * @param counts the number of occurrences of each byte value
+	 * @return the frequency of each byte value
+	 */
+	public static int[] toFrequencies(long[] counts) {
+		long[] scaled = counts.clone();
+		while (total(scaled) > Integer.MAX_VALUE / 2) {
+			for (int s = 0; s < scaled.length; s++) {
+				scaled[s] = (scaled[s] + 1) / 2;
+			}
+		}
+
+		int[] frequencies = new int[scaled.length];
+		for (int s = 0; s < scaled.length; s++) {
+			frequencies[s] = (int) scaled[s];
+		}
+		return frequencies;
+	}
+
+	/** Converts a histogram into a frequency map, scaled as by toFrequencies
+	 * @param counts the number of occurrences of each byte value
+	 * @return a Map from each byte value that occurs to its frequency
+	 */
+	public static Map<Short, Integer> toFrequencyMap(long[] counts) {
+		int[] frequencies = toFrequencies(counts);
+		Map<Short, Integer> m = new HashMap<Short, Integer>();
+		for (int s = 0; s < frequencies.length; s++) {
+			if (frequencies[s] > 0) {
+				m.put((short) s, frequencies[s]);
+			}
+		}
+		return m;
+	}
+
+	/** Estimates how well the counted bytes compress: no coder that codes
+	 * each byte on its own can use fewer bits than their entropy.
+	 * @param counts the number of occurrences of each byte value
+	 * @return the entropy of the counted bytes, in bits
+	 */
+	public static double entropyBits(long[] counts) {
+		long total = total(counts);
+		double bits = 0;
+		for (long c : counts) {
+			if (c > 0) {
+				bits += c * Math.log((double) total / c);
+			}
+		}
+		return bits / Math.log(2);
+	}
+
+	/** @param counts a histogram
+	 * @return the sum of its counts
+	 */
+	public static long total(long[] counts) {
+		long sum = 0;
+		for (long c : counts) {
+			sum += c;
+		}
+		return sum;
+	}
+}
@@ -1,212 +1,663 @@
 import java.io.IOException;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.PriorityQueue;
 
-public class HuffmanTree {
+public class HuffmanTree implements EntropyCoder {
 
-	/** Node Class
-	 * @author chiarazizza
-	 */
-	private class Node {
-		private Integer frequency;
-		private short character;
-		private Node left;
-		private Node right;
-
-		/** Constructor for leaf Nodes 
-		 * @param s a short representing the character
-		 * @param f an Integer representing the frequency of the character
-		 * @param l the left Node
-		 * @param r the right Node
-		 */
-		public Node(short s, Integer f, Node l, Node r) {
-			this.character = s;
-			this.frequency = f;
-			this.left = l;
-			this.right = r;
-		}
-
-		/** Constructor for interior Nodes
-		 * @param f f an Integer representing the sum of the subtree frequencies
-		 * @param l the left Node
-		 * @param r the right Node
-		 */
-		public Node(Integer f, Node l, Node r) {
-			this.frequency = f;
-			this.left = l;
-			this.right = r;
-		}
-
-		/** Constructor for initializing root
-		 */
-		public Node() {
-		}
-	}
-
-	/** Explains how to compare two Nodes
-	 * @author chiarazizza
-	 *
-	 */
-	private class NodeComparator implements Comparator<Node> {
-		@Override
-		public int compare(Node n1, Node n2) {
-			if (n1.frequency > n2.frequency) {
-				return 1;
-			} else if (n1.frequency < n2.frequency) {
-				return -1;
-			} else {
-				return 0;
-			}
-		}
-	}
+	/** Number of characters, including EOF */
+	public static final int SYMBOLS = 257;
 
-	private Node root;
-	private String[] arr;
-	private Map<String, Integer> map;
+	/** Longest code length a header can carry */
+	public static final int MAX_LENGTH = 63;
+
+	/** Number of streams encodeInterleaved splits the characters across */
+	public static final int STREAMS = 4;
+
+	/** Number of bits resolved by a single lookup in a decode table */
+	private static final int LOOKUP_BITS = 10;
+	private static final int LOOKUP_SIZE = 1 << LOOKUP_BITS;
+
+	/** Decode table entry no code leads to */
+	private static final int INVALID = Integer.MIN_VALUE;
+
+	/** Header field widths */
+	private static final int SYMBOL_BITS = 9;
+	private static final int LENGTH_BITS = 6;
+
+	private int[] frequencies; // frequency of each character, if built from frequencies
+	private long optimalBits;  // coded size of the frequencies with unlimited lengths
+	private long[] codes;  // canonical code word of each character, right-aligned
+	private byte[] lengths; // code length of each character, 0 if absent
+	private int[] decodeTable; // primary table at 0, secondary tables after it,
+	                           // built on first use since encoders never need it
+	private int tableEnd;      // first unused slot of decodeTable
 
 	/** Constructs a HuffmanTree from the given frequency map of 9-bit values
 	 * @param m a Map.
 	 */
 	public HuffmanTree(Map<Short, Integer> m) {
-		this.root = new Node();
-		this.arr = new String[257];
+		this(m, MAX_LENGTH);
+	}
 
-		/* Create PriorityQueue from Map */
-		PriorityQueue<Node> pq = buildQueue(m);
+	/** Constructs a HuffmanTree from the given frequency map of 9-bit values,
+	 * with no code longer than maxLength bits
+	 * @param m a Map.
+	 * @param maxLength the longest code allowed
+	 */
+	public HuffmanTree(Map<Short, Integer> m, int maxLength) {
+		this(toArray(m), maxLength);
+	}
+
+	/** Constructs a HuffmanTree from the frequency of each character, with no
+	 * code longer than maxLength bits. EOF is always given frequency 1. If the
+	 * Huffman code is longer than the limit, the lengths are recomputed by
+	 * package-merge, which gives the best code under the limit.
+	 * @param frequencies the frequency of each character, 0 if absent
+	 * @param maxLength the longest code allowed
+	 */
+	public HuffmanTree(int[] frequencies, int maxLength) {
+		this.frequencies = Arrays.copyOf(frequencies, SYMBOLS);
+		this.frequencies[256] = 1;
+		this.lengths = new byte[SYMBOLS];
+
+		/* Sort the characters by frequency, without boxing */
+		long[] order = sortByFrequency();
+		int n = order.length;
+		if (maxLength < 1 || maxLength > MAX_LENGTH || (maxLength < Long.SIZE - 1 && (1L << maxLength) < n)) {
+			throw new IllegalArgumentException("Cannot limit " + n + " codes to " + maxLength + " bits");
+		}
+
+		/* Compute the Huffman code lengths */
+		buildLengths(order);
+		this.optimalBits = getCodedBits();
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.lengths[c] > maxLength) {
+				packageMerge(order, maxLength);
+				break;
+			}
+		}
+		assignCodes();
+	}
 
-		/* Create HuffmanTree */
-		buildTree(pq);
-		buildPath(this.root, "");
+	/** Constructs a HuffmanTree from the code length of each character. Codes
+	 * are assigned canonically, so this yields the same codes as the tree the
+	 * lengths were taken from.
+	 * @param lengths the code length of each character, 0 if absent
+	 */
+	public HuffmanTree(byte[] lengths) {
+		if (lengths.length != SYMBOLS) {
+			throw new IllegalArgumentException("Expected " + SYMBOLS + " code lengths");
+		}
+		this.lengths = lengths.clone();
+		assignCodes();
 	}
 
-	/** Constructs a PriorityQueue from a Map
+	/** Copies a frequency map into an array
 	 * @param m a Map
-	 * @return pq a PriorityQueue
+	 * @return the frequency of each character, 0 if absent
 	 */
-	private PriorityQueue<Node> buildQueue(Map<Short, Integer> m) {
-		Comparator<Node> compareNode = new NodeComparator();
-		PriorityQueue<Node> pq = new PriorityQueue<Node>(compareNode);
-		
-		/* Insert EOF into Map */
-		m.put((short) 256, 1);
+	private static int[] toArray(Map<Short, Integer> m) {
+		int[] frequencies = new int[SYMBOLS];
+		for (Map.Entry<Short, Integer> e : m.entrySet()) {
+			frequencies[e.getKey()] = e.getValue();
+		}
+		return frequencies;
+	}
 
-		/* Populate PriorityQueue */
-		if (m.isEmpty()) { //// recursive or while loop (three lines)
-			throw new IllegalArgumentException("Map must not be empty.");
-		} else {
-			Iterator<Short> keySet = m.keySet().iterator();
-			while (keySet.hasNext()) {
-				short ch = (short) keySet.next();
-				pq.add(new Node(ch, m.get(ch), null, null));
+	/** Lists the characters that occur in increasing order of frequency, ties
+	 * broken by character
+	 * @return each character packed below its frequency, as frequency << 9 | c
+	 */
+	private long[] sortByFrequency() {
+		long[] order = new long[SYMBOLS];
+		int n = 0;
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.frequencies[c] < 0) {
+				throw new IllegalArgumentException("Negative frequency for character: " + c);
+			} else if (this.frequencies[c] > 0) {
+				order[n++] = ((long) this.frequencies[c] << SYMBOL_BITS) | c;
 			}
 		}
-		return pq;
+		order = Arrays.copyOf(order, n);
+		Arrays.sort(order);
+		return order;
 	}
 
-	/** Constructs a HuffmanTree from a PriorityQueue
-	 * @param pq a PriorityQueue
+	/** Computes Huffman code lengths in place with the Moffat-Katajainen
+	 * method. The weights are combined in a single array: phase one builds
+	 * the tree as parent pointers in the same slots, phase two turns parent
+	 * pointers into internal node depths, and phase three turns those into
+	 * leaf depths. A lone character still gets a 1-bit code.
+	 * @param order the characters, sorted by sortByFrequency
 	 */
-	private void buildTree(PriorityQueue<Node> pq) {
-		if (pq.isEmpty()) {
-			throw new IllegalArgumentException("PriorityQueue must not be empty.");
-		} else {
-			while (pq.size() > 1) {
-				Node temp1 = pq.poll();
-				Node temp2 = pq.poll();
-				pq.add(new Node(temp1.frequency + temp2.frequency, temp1, temp2));
+	private void buildLengths(long[] order) {
+		int n = order.length;
+		if (n == 1) {
+			this.lengths[(int) order[0] & 0x1FF] = 1;
+			return;
+		}
+		long[] a = new long[n];
+		for (int i = 0; i < n; i++) {
+			a[i] = order[i] >>> SYMBOL_BITS;
+		}
+
+		/* Phase 1: combine the two lightest of the leaves and internal nodes */
+		a[0] += a[1];
+		int root = 0;
+		int leaf = 2;
+		for (int next = 1; next < n - 1; next++) {
+			if (leaf >= n || a[root] < a[leaf]) {
+				a[next] = a[root];
+				a[root++] = next;
+			} else {
+				a[next] = a[leaf++];
+			}
+			if (leaf >= n || (root < next && a[root] < a[leaf])) {
+				a[next] += a[root];
+				a[root++] = next;
+			} else {
+				a[next] += a[leaf++];
+			}
+		}
+
+		/* Phase 2: depth of each internal node */
+		a[n - 2] = 0;
+		for (int next = n - 3; next >= 0; next--) {
+			a[next] = a[(int) a[next]] + 1;
+		}
+
+		/* Phase 3: depth of each leaf, deepest first */
+		int avail = 1;
+		int used = 0;
+		int depth = 0;
+		root = n - 2;
+		int next = n - 1;
+		while (avail > 0) {
+			while (root >= 0 && a[root] == depth) {
+				used++;
+				root--;
 			}
+			while (avail > used) {
+				a[next--] = depth;
+				avail--;
+			}
+			avail = 2 * used;
+			depth++;
+			used = 0;
+		}
 
-			/* Assign root to new tree */
-			this.root = pq.poll();
+		for (int i = 0; i < n; i++) {
+			this.lengths[(int) order[i] & 0x1FF] = (byte) Math.min(a[i], Byte.MAX_VALUE);
 		}
 	}
 
 	/** Encodes the file given as a stream of bits into a compressed format using
-	 * this Huffman tree. The encoded values are written, bit-by-bit to the
-	 * given BitOuputStream
+	 * this Huffman tree. Each code is written to the given BitOutputStream with
+	 * a single multi-bit write
 	 * @param in the BitInputStream being read
 	 * @param out the BitOutputStream being written to
 	 */
 	public void encode(BitInputStream in, BitOutputStream out) {
-		//System.out.println("In encode.");
-		boolean proceed = true;
 		int c = in.readBits(8);
+		while (c != -1) {
+			writeCode(c, out);
+			c = in.readBits(8);
+		}
+		writeCode(256, out); //array index for EOF character
+	}
 
-		while (proceed) {
-			/* Checks to see if the EOF has been reached */
-			if(c == -1) {
-				proceed = false;
-				c = 256; //array index for EOF character
-			}
-			
-			String temp = this.arr[c];  //temp is the "01" string designated for each character
-			//System.out.println(temp);
-//			System.out.println(this.arr[c]);
-//			System.out.println("Temp is null: " + temp == null);
-//			System.out.println(temp);
-			
-			for (int i = 0; i < temp.length(); i++) {
-				//System.out.println(temp.charAt(i));
-				if (temp.charAt(i) == '0') {
-					out.writeBit(0);
-				} else if (temp.charAt(i) == '1') {
-					out.writeBit(1);
-				} else {
-					throw new IllegalArgumentException("Not '0' or '1'");
-				}
+	/** Encodes like encode, also recording a checkpoint at the code of every
+	 * interval-th byte so that decoding can later start there
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 * @param checkpoints the table to add the code offsets in out to
+	 */
+	public void encode(BitInputStream in, BitOutputStream out, GrinCheckpoints checkpoints) {
+		int interval = checkpoints.getInterval();
+		int untilCheckpoint = 0;
+		int c = in.readBits(8);
+		while (c != -1) {
+			if (untilCheckpoint-- == 0) {
+				checkpoints.add(out.bitsWritten());
+				untilCheckpoint = interval - 1;
 			}
-			//System.out.println();
+			writeCode(c, out);
 			c = in.readBits(8);
 		}
+		writeCode(256, out);
 	}
-	
+
+	/** Encodes the bytes of a buffer followed by the EOF code, as encode
+	 * codes a stream, so the codes also decode without knowing their number
+	 * @param data the bytes to encode; its position is not moved
+	 * @param out the BitOutputStream being written to
+	 */
+	public void encode(ByteBuffer data, BitOutputStream out) {
+		for (int i = data.position(); i < data.limit(); i++) {
+			writeCode(data.get(i) & 0xFF, out);
+		}
+		writeCode(256, out);
+	}
+
+	/** Encodes the bytes of a buffer into STREAMS streams, byte i going to
+	 * stream i % STREAMS. No EOF code is written, so the decoder must be told
+	 * how many bytes there are.
+	 * @param data the bytes to encode; its position is not moved
+	 * @param out the STREAMS BitOutputStreams being written to
+	 */
+	public void encodeInterleaved(ByteBuffer data, BitOutputStream[] out) {
+		int i = data.position();
+		int end = data.limit();
+		for (; i + STREAMS <= end; i += STREAMS) {
+			writeCode(data.get(i) & 0xFF, out[0]);
+			writeCode(data.get(i + 1) & 0xFF, out[1]);
+			writeCode(data.get(i + 2) & 0xFF, out[2]);
+			writeCode(data.get(i + 3) & 0xFF, out[3]);
+		}
+		for (int s = 0; i < end; i++, s++) {
+			writeCode(data.get(i) & 0xFF, out[s]);
+		}
+	}
+
+	/** Writes the code of one character
+	 * @param c the character
+	 * @param out the BitOutputStream being written to
+	 */
+	public void writeCode(int c, BitOutputStream out) {
+		int length = this.lengths[c];
+		if (length == 0) {
+			throw new IllegalArgumentException("No code for character: " + c);
+		} else if (length <= Integer.SIZE) {
+			out.writeBits((int) this.codes[c], length);
+		} else {
+			out.writeBits((int) (this.codes[c] >>> Integer.SIZE), length - Integer.SIZE);
+			out.writeBits((int) this.codes[c], Integer.SIZE);
+		}
+	}
+
 	/** Decodes a stream of huffman codes from a file given as a stream of bits
-	 * into their uncompressed form, saving the results to the given output stream
+	 * into their uncompressed form, saving the results to the given output stream.
+	 * Codes are resolved LOOKUP_BITS at a time by peeking at the input through
+	 * the decode table, so each symbol costs one array access (two or more only
+	 * for long codes).
 	 * @param in the BitInputStream being read
 	 * @param out the BitOutputStream being written to
 	 */
 	public void decode(BitInputStream in, BitOutputStream out) {
-		String temp = "";
-
-		while(true) {
-			int c = in.readBits(8);
-			if(c == -1) {
+		if (this.decodeTable == null) {
+			buildDecodeTable();
+		}
+		while (true) {
+			int c = decodeChar(in);
+			if (c == 256) {
 				return;
 			}
-			temp += (char)c; //converts to "1" or "0"
-			System.out.println(temp);
-			if(this.map.containsKey(temp)) {
-				out.writeBits(this.map.get(temp), 8); //writes the binary equivalent of character ASCII values
-				temp = "";
+			out.writeBits(c, 8);
+		}
+	}
+
+	/** Decodes n bytes written by encode(ByteBuffer, BitOutputStream) or
+	 * encode(BitInputStream, BitOutputStream), leaving the EOF code after
+	 * them unread
+	 * @param in the BitInputStream being read
+	 * @param out the buffer to put the bytes in
+	 * @param n the number of bytes to decode
+	 */
+	public void decode(BitInputStream in, ByteBuffer out, int n) {
+		if (this.decodeTable == null) {
+			buildDecodeTable();
+		}
+		for (int i = 0; i < n; i++) {
+			int c = decodeChar(in);
+			if (c == 256) {
+				throw new IllegalArgumentException("Unexpected EOF code");
 			}
+			out.put((byte) c);
 		}
 	}
-	
-	
-	
-	
-	/* EXTRA CODES */
-	private void buildPath(Node cur, String s) {
-		if (cur.left != null && cur.right != null) {
-			buildPath(cur.left, s + "0");
-			buildPath(cur.right, s + "1");
+
+	/** Decodes bytes written by encodeInterleaved. The streams are advanced
+	 * together, one character from each per round; their positions do not
+	 * depend on each other, so the processor can overlap the four lookups
+	 * instead of waiting for each code length before starting the next.
+	 * Rounds run without checking for the end of input for as long as every
+	 * stream holds enough bits for that many codes of the longest length.
+	 * @param in the STREAMS BitInputStreams being read
+	 * @param out the buffer to put the bytes in
+	 * @param n the number of bytes to decode
+	 */
+	public void decodeInterleaved(BitInputStream[] in, ByteBuffer out, int n) {
+		if (this.decodeTable == null) {
+			buildDecodeTable();
+		}
+		int longest = 1;
+		for (int c = 0; c < SYMBOLS; c++) {
+			longest = Math.max(longest, this.lengths[c]);
+		}
+		BitInputStream in0 = in[0];
+		BitInputStream in1 = in[1];
+		BitInputStream in2 = in[2];
+		BitInputStream in3 = in[3];
+		int i = 0;
+		while (true) {
+			long safe = Math.min(Math.min(in0.bitsRemaining(), in1.bitsRemaining()),
+					Math.min(in2.bitsRemaining(), in3.bitsRemaining())) / longest;
+			int rounds = (int) Math.min(safe, (n - i) / STREAMS);
+			if (rounds == 0) {
+				break;
+			}
+			for (int end = i + rounds * STREAMS; i < end; i += STREAMS) {
+				int e0 = lookup(in0);
+				int e1 = lookup(in1);
+				int e2 = lookup(in2);
+				int e3 = lookup(in3);
+				in0.skipBits(e0 & 0xFF);
+				in1.skipBits(e1 & 0xFF);
+				in2.skipBits(e2 & 0xFF);
+				in3.skipBits(e3 & 0xFF);
+				if ((e0 | e1 | e2 | e3) >>> 8 > 0xFF) {
+					throw new IllegalArgumentException("Unexpected EOF code");
+				}
+				out.put((byte) (e0 >>> 8));
+				out.put((byte) (e1 >>> 8));
+				out.put((byte) (e2 >>> 8));
+				out.put((byte) (e3 >>> 8));
+			}
+		}
+		for (int s = 0; i < n; i++, s = (s + 1) % STREAMS) {
+			int c = decodeChar(in[s]);
+			if (c > 0xFF) {
+				throw new IllegalArgumentException("Unexpected EOF code");
+			}
+			out.put((byte) c);
+		}
+	}
+
+	/** Decodes the code of one character
+	 * @param in the BitInputStream being read
+	 * @return the character, which may be EOF
+	 */
+	public int readCode(BitInputStream in) {
+		if (this.decodeTable == null) {
+			buildDecodeTable();
+		}
+		return decodeChar(in);
+	}
+
+	/** Finds the decode table entry of the next code, skipping LOOKUP_BITS
+	 * for each link to a secondary table followed
+	 * @param in the BitInputStream being read
+	 * @return the leaf entry, whose bits are not yet skipped
+	 */
+	private int lookup(BitInputStream in) {
+		int entry = this.decodeTable[in.peekBits(LOOKUP_BITS)];
+		while (entry < 0) {
+			if (entry == INVALID) {
+				throw new IllegalArgumentException("Invalid code in input");
+			}
+			in.skipBits(LOOKUP_BITS);
+			entry = this.decodeTable[~entry + in.peekBits(LOOKUP_BITS)];
+		}
+		return entry;
+	}
+
+	/** Decodes one character through the decode table
+	 * @param in the BitInputStream being read
+	 * @return the character, which may be EOF
+	 */
+	private int decodeChar(BitInputStream in) {
+		int entry = lookup(in);
+		int length = entry & 0xFF;
+		if (in.bitsRemaining() < length) {
+			throw new IllegalArgumentException("Input ended inside a code");
+		}
+		in.skipBits(length);
+		return entry >>> 8;
+	}
+
+	/** Builds the lookup tables used by decode. A table entry is either a leaf,
+	 * stored as (symbol << 8 | bits consumed), or a link to a secondary table for
+	 * codes longer than LOOKUP_BITS, stored as the complement of its offset.
+	 * Decoding builds them on first use; a tree shared between threads should
+	 * have them built up front instead.
+	 */
+	public void buildDecodeTable() {
+		this.decodeTable = new int[LOOKUP_SIZE];
+		this.tableEnd = 0;
+		newTable();
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.lengths[c] > 0) {
+				insert(c);
+			}
+		}
+	}
+
+	/** Allocates an empty table at the end of decodeTable
+	 * @return the offset of the new table within decodeTable
+	 */
+	private int newTable() {
+		int offset = this.tableEnd;
+		this.tableEnd += LOOKUP_SIZE;
+		if (this.tableEnd > this.decodeTable.length) {
+			this.decodeTable = Arrays.copyOf(this.decodeTable, 2 * this.decodeTable.length);
+		}
+		Arrays.fill(this.decodeTable, offset, this.tableEnd, INVALID);
+		return offset;
+	}
+
+	/** Adds the entries for one character's code, following or creating links
+	 * to secondary tables for each LOOKUP_BITS of the code beyond the first
+	 * @param c the character
+	 */
+	private void insert(int c) {
+		long code = this.codes[c];
+		int remaining = this.lengths[c];
+		int offset = 0;
+		while (remaining > LOOKUP_BITS) {
+			remaining -= LOOKUP_BITS;
+			int index = offset + ((int) (code >>> remaining) & (LOOKUP_SIZE - 1));
+			if (this.decodeTable[index] == INVALID) {
+				int table = newTable();
+				this.decodeTable[index] = ~table;
+			}
+			offset = ~this.decodeTable[index];
+		}
+		int span = 1 << (LOOKUP_BITS - remaining);
+		int start = offset + (((int) code & ((1 << remaining) - 1)) << (LOOKUP_BITS - remaining));
+		Arrays.fill(this.decodeTable, start, start + span, (c << 8) | remaining);
+	}
+
+	/** Assigns canonical codes from the code lengths: codes of the same length
+	 * are consecutive in character order, and shorter codes come first
+	 */
+	private void assignCodes() {
+		int[] count = new int[MAX_LENGTH + 1];
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.lengths[c] < 0 || this.lengths[c] > MAX_LENGTH) {
+				throw new IllegalArgumentException("Bad code length: " + this.lengths[c]);
+			}
+			count[this.lengths[c]]++;
+		}
+
+		/* Check that the lengths describe a prefix code */
+		long left = 1;
+		long[] next = new long[MAX_LENGTH + 1];
+		for (int len = 1; len <= MAX_LENGTH; len++) {
+			left = Math.min(2 * left, 2 * SYMBOLS) - count[len];
+			if (left < 0) {
+				throw new IllegalArgumentException("Code lengths are over-subscribed");
+			}
+			if (len < MAX_LENGTH) {
+				next[len + 1] = (next[len] + count[len]) << 1;
+			}
+		}
+
+		this.codes = new long[SYMBOLS];
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.lengths[c] > 0) {
+				this.codes[c] = next[this.lengths[c]]++;
+			}
+		}
+	}
+
+	/** @return the number of bits writeHeader writes for this tree */
+	public int getHeaderBits() {
+		int n = 0;
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.lengths[c] > 0) {
+				n++;
+			}
+		}
+		return 1 + Math.min(SYMBOL_BITS + n * (SYMBOL_BITS + LENGTH_BITS), SYMBOLS * LENGTH_BITS);
+	}
+
+	/** Writes the code length of each character. Few characters are listed
+	 * sparsely as 9-bit character and 6-bit length pairs, many as a 6-bit
+	 * length for every character.
+	 * @param out the BitOutputStream being written to
+	 */
+	public void writeHeader(BitOutputStream out) {
+		int n = 0;
+		for (int c = 0; c < SYMBOLS; c++) {
+			if (this.lengths[c] > 0) {
+				n++;
+			}
+		}
+
+		if (SYMBOL_BITS + n * (SYMBOL_BITS + LENGTH_BITS) < SYMBOLS * LENGTH_BITS) {
+			out.writeBit(0);
+			out.writeBits(n, SYMBOL_BITS);
+			for (int c = 0; c < SYMBOLS; c++) {
+				if (this.lengths[c] > 0) {
+					out.writeBits(c, SYMBOL_BITS);
+					out.writeBits(this.lengths[c], LENGTH_BITS);
+				}
+			}
 		} else {
-			this.arr[cur.character] = s;
+			out.writeBit(1);
+			for (int c = 0; c < SYMBOLS; c++) {
+				out.writeBits(this.lengths[c], LENGTH_BITS);
+			}
 		}
-		
-		createDecodeMap(); //from this new array, construct a corresponding map to decode it
 	}
-	
-	private void createDecodeMap() {
-		this.map = new HashMap<String, Integer>();
-		for(int i = 0; i < this.arr.length; i ++) {
-			if(this.arr[i] != null) {
-				this.map.put(this.arr[i], i);
+
+	/** Reads a header written by writeHeader
+	 * @param in the BitInputStream being read
+	 * @return the HuffmanTree the header describes
+	 */
+	public static HuffmanTree readHeader(BitInputStream in) {
+		byte[] lengths = new byte[SYMBOLS];
+		int dense = in.readBit();
+		if (dense == 0) {
+			int n = in.readBits(SYMBOL_BITS);
+			for (int i = 0; i < n; i++) {
+				int c = in.readBits(SYMBOL_BITS);
+				int length = in.readBits(LENGTH_BITS);
+				if (c < 0 || c >= SYMBOLS || length < 0) {
+					throw new IllegalArgumentException("Bad code length header");
+				}
+				lengths[c] = (byte) length;
 			}
+		} else if (dense == 1) {
+			for (int c = 0; c < SYMBOLS; c++) {
+				lengths[c] = (byte) in.readBits(LENGTH_BITS);
+			}
+		} else {
+			throw new IllegalArgumentException("Input ended before the header");
 		}
+		return new HuffmanTree(lengths);
+	}
+
+	/* EXTRA CODES */
+	/** Replaces the code lengths with the best lengths no longer than maxLength,
+	 * using the package-merge algorithm. Level maxLength holds the characters
+	 * sorted by frequency; each level above holds the characters merged with
+	 * packages of adjacent pairs from the level below. Taking the first 2n - 2
+	 * items of the top level, and following the packages taken down the
+	 * levels, each character's length is the number of times it was taken.
+	 * @param order the characters, sorted by sortByFrequency
+	 * @param maxLength the longest code allowed
+	 */
+	private void packageMerge(long[] order, int maxLength) {
+		int n = order.length;
+
+		/* items[l][i] >= 0 is a character, < 0 a package; weights[l][i] its weight */
+		int[][] items = new int[maxLength + 1][];
+		long[][] weights = new long[maxLength + 1][];
+		items[maxLength] = new int[n];
+		weights[maxLength] = new long[n];
+		for (int i = 0; i < n; i++) {
+			items[maxLength][i] = (int) order[i] & 0x1FF;
+			weights[maxLength][i] = order[i] >>> SYMBOL_BITS;
+		}
+		for (int l = maxLength - 1; l >= 1; l--) {
+			long[] below = weights[l + 1];
+			int packages = below.length / 2;
+			items[l] = new int[n + packages];
+			weights[l] = new long[n + packages];
+			int leaf = 0;
+			int pkg = 0;
+			for (int i = 0; i < n + packages; i++) {
+				long pkgWeight = pkg < packages ? below[2 * pkg] + below[2 * pkg + 1] : Long.MAX_VALUE;
+				if (leaf < n && weights[maxLength][leaf] <= pkgWeight) {
+					items[l][i] = items[maxLength][leaf];
+					weights[l][i] = weights[maxLength][leaf++];
+				} else {
+					items[l][i] = -1;
+					weights[l][i] = pkgWeight;
+					pkg++;
+				}
+			}
+		}
+
+		Arrays.fill(this.lengths, (byte) 0);
+		int take = Math.max(2 * n - 2, 1);
+		for (int l = 1; l <= maxLength && take > 0; l++) {
+			int packages = 0;
+			for (int i = 0; i < take; i++) {
+				if (items[l][i] >= 0) {
+					this.lengths[items[l][i]]++;
+				} else {
+					packages++;
+				}
+			}
+			take = 2 * packages;
+		}
+	}
+
+	/** @return the number of bits the frequencies the tree was built from take
+	 *          to code with the current lengths, or 0 for a tree built from
+	 *          lengths */
+	public long getCodedBits() {
+		long bits = 0;
+		for (int c = 0; c < SYMBOLS && this.frequencies != null; c++) {
+			bits += (long) this.frequencies[c] * this.lengths[c];
+		}
+		return bits;
+	}
+
+	/** @param counts the number of occurrences of each byte value
+	 * @return the number of bits the counted bytes and the EOF code take to
+	 *         code with this tree, or Long.MAX_VALUE if one of them has no
+	 *         code
+	 */
+	public long getCodedBits(long[] counts) {
+		long bits = this.lengths[256];
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] > 0 && this.lengths[c] == 0) {
+				return Long.MAX_VALUE;
+			}
+			bits += counts[c] * this.lengths[c];
+		}
+		return bits;
+	}
+
+	/** @return the number of bits the frequencies would take to code with no
+	 *          limit on code length */
+	public long getOptimalBits() {
+		return this.optimalBits;
 	}
 
 	
@@ -214,16 +665,33 @@ public class HuffmanTree {
 	
 	
 	public void printArr() {
-		for (int i = 0; i < this.arr.length; i++) { // CHECK THIS -- DOESN'T MATCH HOMEWORK CHART
-			if (this.arr[i] != null) {
+		for (int i = 0; i < this.lengths.length; i++) { // CHECK THIS -- DOESN'T MATCH HOMEWORK CHART
+			if (this.lengths[i] > 0) {
 				System.out.println("Character value: " + i);
-				System.out.println("Character path:  " + this.arr[i] + "\n");
+				System.out.println("Character path:  " + codeString(i) + "\n");
 			}
 		}
 	}
+
+	/** Spells out the code of a character as "0"s and "1"s
+	 * @param c the character
+	 * @return the code, most significant bit first
+	 */
+	private String codeString(int c) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = this.lengths[c] - 1; i >= 0; i--) {
+			sb.append((this.codes[c] >>> i) & 1);
+		}
+		return sb.toString();
+	}
 	
+	/** @return the total frequency of a tree built from frequencies */
 	public int getRootFrequency() {
-		return this.root.frequency;
+		int total = 0;
+		for (int c = 0; c < SYMBOLS && this.frequencies != null; c++) {
+			total += this.frequencies[c];
+		}
+		return total;
 	}
 	
 
@@ -242,13 +710,12 @@ public class HuffmanTree {
 
 		HuffmanTree t = new HuffmanTree(m);
 
-		//t.buildPath(t.root, "");
 		//t.printArr();
 
-		//System.out.println("Tree frequency: " + t.root.frequency);
+		//System.out.println("Tree frequency: " + t.getRootFrequency());
 
 		BitInputStream inputEncode = new BitInputStream("TestInput.txt");
-		BitOutputStream outputEncode = new BitOutputStream("TestOutput3.txt", true);
+		BitOutputStream outputEncode = new BitOutputStream("TestOutput3.txt");
 		
 		
 		
@@ -264,7 +731,7 @@ public class HuffmanTree {
 		
 		
 		BitInputStream inputDecode = new BitInputStream("TestOutput3.txt");
-		BitOutputStream outputDecode = new BitOutputStream("TestDecode3.txt", true);
+		BitOutputStream outputDecode = new BitOutputStream("TestDecode3.txt");
 		
 		/* Convert from 01s to characters */
 		t.decode(inputDecode, outputDecode);
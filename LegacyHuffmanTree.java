@@ -0,0 +1,86 @@
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/** Decodes .grin files with a frequency header (GrinEncoder.MAGIC_NUMBER), as
+ * written before codes became canonical. Their codes follow the shape of the
+ * tree the encoder built from the frequencies, so the tree is rebuilt here
+ * exactly as it was then: the same priority queue, fed the characters in the
+ * same order, merging the same pairs. Codes are then read a bit at a time
+ * down the tree, which is slow but only needed for old files.
+ */
+public class LegacyHuffmanTree {
+
+	/** A tree node; leaves have no children */
+	private static class Node {
+		private int frequency;
+		private int character;
+		private Node left;
+		private Node right;
+
+		/** Constructor
+		 * @param character the character of a leaf
+		 * @param frequency the sum of the frequencies below the node
+		 * @param left the left child, or null for a leaf
+		 * @param right the right child, or null for a leaf
+		 */
+		private Node(int character, int frequency, Node left, Node right) {
+			this.character = character;
+			this.frequency = frequency;
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	private Node root;
+
+	/** Rebuilds the tree an earlier encoder built from a frequency header
+	 * @param m the frequency of each character, in the order the header
+	 *        listed them; EOF is added with frequency 1
+	 */
+	public LegacyHuffmanTree(Map<Short, Integer> m) {
+		m.put((short) 256, 1);
+		PriorityQueue<Node> pq = new PriorityQueue<Node>(new Comparator<Node>() {
+			@Override
+			public int compare(Node n1, Node n2) {
+				return Integer.compare(n1.frequency, n2.frequency);
+			}
+		});
+		Iterator<Short> keySet = m.keySet().iterator();
+		while (keySet.hasNext()) {
+			short ch = keySet.next();
+			if (ch < 0 || ch > 256) {
+				throw new IllegalArgumentException("Bad character in frequency header: " + ch);
+			}
+			pq.add(new Node(ch, m.get(ch), null, null));
+		}
+		while (pq.size() > 1) {
+			Node temp1 = pq.poll();
+			Node temp2 = pq.poll();
+			pq.add(new Node(0, temp1.frequency + temp2.frequency, temp1, temp2));
+		}
+		this.root = pq.poll();
+	}
+
+	/** Decodes codes up to and including the EOF code
+	 * @param in the BitInputStream being read
+	 * @param out the BitOutputStream being written to
+	 */
+	public void decode(BitInputStream in, BitOutputStream out) {
+		while (true) {
+			Node cur = this.root;
+			while (cur.left != null) {
+				int bit = in.readBit();
+				if (bit == -1) {
+					throw new IllegalArgumentException("Input ended before the EOF code");
+				}
+				cur = bit == 0 ? cur.left : cur.right;
+			}
+			if (cur.character == 256) {
+				return;
+			}
+			out.writeBits(cur.character, 8);
+		}
+	}
+}